@@ -0,0 +1,77 @@
+package io.euphoria.xkcd.app;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/* Debug screen showing the message latency histograms of LatencyTracer, and exporting its traces */
+public class LatencyActivity extends Activity {
+
+    private static final String TRACE_FILE_NAME = "latency-trace.json";
+
+    private TextView summary;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_latency);
+        summary = findViewById(R.id.latency_summary);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    public void refreshClicked(View view) {
+        refresh();
+    }
+
+    public void clearClicked(View view) {
+        LatencyTracer.getInstance().clear();
+        refresh();
+    }
+
+    /* Write the traces as a Chrome trace file, preferably to where "adb pull" can get it */
+    public void exportClicked(View view) {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) dir = getFilesDir();
+        File dest = new File(dir, TRACE_FILE_NAME);
+        try {
+            byte[] data = LatencyTracer.getInstance().toChromeTrace().toString().getBytes(Charset.forName("UTF-8"));
+            OutputStream out = new FileOutputStream(dest);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        } catch (IOException | JSONException exc) {
+            Log.e("LatencyActivity", "Could not export latency trace", exc);
+            Toast.makeText(this, R.string.latency_export_failed, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Toast.makeText(this, getResources().getString(R.string.latency_exported, dest.getPath()),
+                Toast.LENGTH_LONG).show();
+    }
+
+    private void refresh() {
+        if (!LatencyTracer.isEnabled()) {
+            summary.setText(R.string.latency_disabled);
+            return;
+        }
+        summary.setText(LatencyTracer.getInstance().summarize());
+    }
+
+}
@@ -0,0 +1,229 @@
+package io.euphoria.xkcd.app;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/* Traces how long live messages take from arriving at the socket to being shown
+ *
+ * Every live message is stamped (by its ID) as it passes the stages below; once it is bound to a view for the first
+ * time, the durations between consecutive stages are added to per-stage histograms, and the trace is kept in a ring
+ * buffer for export (see toChromeTrace()). Messages that never get shown (e.g. in background rooms) eventually fall
+ * out of the bounded set of traces in flight.
+ *
+ * Tracing is on in debug builds only; when it is off, stamping costs a single volatile read. Thread-safe.
+ */
+public class LatencyTracer {
+
+    /* The points at which messages are stamped, in order */
+    public enum Stage {
+        RECEIVE("receive"), PARSE("parse"), DISPATCH("dispatch"), DEQUEUE("dequeue"), INSERT("insert"),
+        BIND("bind");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /* A histogram of durations with power-of-two microsecond buckets */
+    public static class Histogram {
+
+        // Bucket i counts durations below 2**i microseconds (and at least half of that); the last one is open-ended.
+        public static final int BUCKETS = 24;
+
+        private final long[] counts = new long[BUCKETS];
+        private long total;
+        private long sum;
+        private long max;
+
+        private void add(long micros) {
+            int bucket = 64 - Long.numberOfLeadingZeros(Math.max(micros, 0));
+            counts[Math.min(bucket, BUCKETS - 1)]++;
+            total++;
+            sum += micros;
+            max = Math.max(max, micros);
+        }
+
+        public long getCount() {
+            return total;
+        }
+
+        public long getMean() {
+            return (total == 0) ? 0 : sum / total;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /* An upper bound of the given quantile (between 0 and 1) in microseconds, or 0 if there is no data */
+        public long getQuantile(double q) {
+            long target = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= target && seen != 0) return Math.min(1L << i, max);
+            }
+            return max;
+        }
+
+    }
+
+    // Traces awaiting their first bind; the oldest are dropped beyond this.
+    private static final int MAX_IN_FLIGHT = 256;
+    // Completed traces kept for export.
+    private static final int MAX_COMPLETED = 1024;
+
+    private static final LatencyTracer INSTANCE = new LatencyTracer();
+
+    public static LatencyTracer getInstance() {
+        return INSTANCE;
+    }
+
+    /* Whether stamps are recorded at all; checking this first avoids any further work */
+    public static boolean isEnabled() {
+        return INSTANCE.enabled;
+    }
+
+    private final Map<String, long[]> inFlight;
+    private final ArrayDeque<Trace> completed;
+    // Histograms of the time from the previous stage to each stage (the entry for RECEIVE covers the whole way).
+    private final Histogram[] histograms;
+    private volatile boolean enabled;
+
+    private static class Trace {
+
+        private final String id;
+        private final long[] stamps;
+
+        private Trace(String id, long[] stamps) {
+            this.id = id;
+            this.stamps = stamps;
+        }
+
+    }
+
+    private LatencyTracer() {
+        inFlight = new LinkedHashMap<String, long[]>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                return size() > MAX_IN_FLIGHT;
+            }
+        };
+        completed = new ArrayDeque<>();
+        histograms = new Histogram[Stage.values().length];
+        for (int i = 0; i < histograms.length; i++) histograms[i] = new Histogram();
+        enabled = BuildConfig.DEBUG;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /* Start tracing the message with the given ID, which was received at the given System.nanoTime() */
+    public void begin(String id, long receivedNanos) {
+        if (!enabled) return;
+        long[] stamps = new long[Stage.values().length];
+        stamps[Stage.RECEIVE.ordinal()] = receivedNanos;
+        synchronized (this) {
+            inFlight.put(id, stamps);
+        }
+    }
+
+    /* The message with the given ID has just reached the given stage
+     *
+     * Only the first time a message reaches a stage counts; unknown messages are ignored.
+     */
+    public void stamp(String id, Stage stage) {
+        if (!enabled) return;
+        long now = System.nanoTime();
+        synchronized (this) {
+            long[] stamps = inFlight.get(id);
+            if (stamps == null || stamps[stage.ordinal()] != 0) return;
+            stamps[stage.ordinal()] = now;
+            if (stage == Stage.BIND) complete(id, inFlight.remove(id));
+        }
+    }
+
+    private void complete(String id, long[] stamps) {
+        long prev = stamps[0];
+        for (int i = 1; i < stamps.length; i++) {
+            // Stages that were skipped (e.g. because the room was not on screen) are attributed to the next one.
+            if (stamps[i] == 0) continue;
+            histograms[i].add((stamps[i] - prev) / 1000);
+            prev = stamps[i];
+        }
+        histograms[Stage.RECEIVE.ordinal()].add((stamps[stamps.length - 1] - stamps[0]) / 1000);
+        completed.add(new Trace(id, stamps));
+        if (completed.size() > MAX_COMPLETED) completed.remove();
+    }
+
+    /* Forget all traces and statistics */
+    public synchronized void clear() {
+        inFlight.clear();
+        completed.clear();
+        for (int i = 0; i < histograms.length; i++) histograms[i] = new Histogram();
+    }
+
+    /* A human-readable summary of the histograms */
+    public synchronized String summarize() {
+        StringBuilder sb = new StringBuilder();
+        Stage[] stages = Stage.values();
+        for (int i = 1; i < stages.length; i++) {
+            appendHistogram(sb, stages[i - 1].getLabel() + " -> " + stages[i].getLabel(), histograms[i]);
+        }
+        appendHistogram(sb, "total", histograms[0]);
+        return sb.toString();
+    }
+
+    private static void appendHistogram(StringBuilder sb, String name, Histogram h) {
+        sb.append(String.format(Locale.ROOT, "%s: n=%d mean=%dus p50<=%dus p90<=%dus p99<=%dus max=%dus\n", name,
+                h.getCount(), h.getMean(), h.getQuantile(0.5), h.getQuantile(0.9), h.getQuantile(0.99), h.getMax()));
+        for (int i = 0; i < Histogram.BUCKETS; i++) {
+            if (h.counts[i] == 0) continue;
+            sb.append(String.format(Locale.ROOT, "  <%8dus %6d\n", 1L << i, h.counts[i]));
+        }
+    }
+
+    /* The completed traces in the Chrome trace event format (as understood by chrome://tracing and Perfetto)
+     *
+     * Every stage of every message becomes a complete ("X") event on its own track, spanning from the previous stage.
+     */
+    public synchronized JSONObject toChromeTrace() throws JSONException {
+        JSONArray events = new JSONArray();
+        Stage[] stages = Stage.values();
+        for (int i = 1; i < stages.length; i++) {
+            events.put(new JSONObject().put("name", "thread_name").put("ph", "M").put("pid", 1).put("tid", i)
+                    .put("args", new JSONObject().put("name", stages[i].getLabel())));
+        }
+        for (Trace t : completed) {
+            long prev = t.stamps[0];
+            for (int i = 1; i < t.stamps.length; i++) {
+                if (t.stamps[i] == 0) continue;
+                events.put(new JSONObject()
+                        .put("name", stages[i].getLabel())
+                        .put("cat", "latency")
+                        .put("ph", "X")
+                        .put("ts", prev / 1000)
+                        .put("dur", (t.stamps[i] - prev) / 1000)
+                        .put("pid", 1)
+                        .put("tid", i)
+                        .put("args", new JSONObject().put("id", t.id)));
+                prev = t.stamps[i];
+            }
+        }
+        return new JSONObject().put("traceEvents", events).put("displayTimeUnit", "ms");
+    }
+
+}
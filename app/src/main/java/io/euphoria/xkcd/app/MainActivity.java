@@ -4,15 +4,23 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
+import android.text.Editable;
 import android.text.InputFilter;
 import android.text.Spanned;
+import android.text.TextWatcher;
 import android.view.View;
 import android.view.Window;
 import android.view.inputmethod.EditorInfo;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.AutoCompleteTextView;
 import android.widget.Button;
 import android.widget.Toast;
 
+import java.util.List;
+
+import io.euphoria.xkcd.app.impl.connection.Preconnector;
+
 import static io.euphoria.xkcd.app.URLs.isValidRoomName;
 import static io.euphoria.xkcd.app.URLs.isValidRoomNameFragment;
 import static io.euphoria.xkcd.app.impl.ui.UIUtils.setEnterKeyListener;
@@ -21,6 +29,9 @@ public class MainActivity extends AppCompatActivity {
 
     private Button enterBtn;
     private AutoCompleteTextView roomField;
+    private Settings settings;
+    private Preconnector preconnector;
+    private List<String> recentRooms;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -50,6 +61,31 @@ public class MainActivity extends AppCompatActivity {
         };
         roomField.setFilters(new InputFilter[] {inputFilter});
 
+        // Warm up a connection to the room the user is (probably) about to join. Only recently joined rooms that the
+        // user has unambiguously typed or picked are considered, so that we do not show up in rooms uninvited.
+        settings = new Settings(this);
+        preconnector = Preconnector.getInstance(this);
+        roomField.setThreshold(1);
+        roomField.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                String match = findRecentRoom(s.toString());
+                if (match != null) preconnector.preconnect(match);
+            }
+        });
+        roomField.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                preconnector.preconnect((String) parent.getItemAtPosition(position));
+            }
+        });
+
         // Go to the selected room when done
         setEnterKeyListener(roomField, EditorInfo.IME_ACTION_GO, new Runnable() {
             @Override
@@ -65,6 +101,25 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        recentRooms = settings.getRecentRooms();
+        roomField.setAdapter(new ArrayAdapter<>(this, android.R.layout.simple_dropdown_item_1line, recentRooms));
+    }
+
+    /* Return the only recently joined room whose name starts with prefix, or null if there is none or more than one */
+    private String findRecentRoom(String prefix) {
+        if (prefix.isEmpty() || recentRooms == null) return null;
+        String ret = null;
+        for (String room : recentRooms) {
+            if (!room.startsWith(prefix)) continue;
+            if (ret != null) return null;
+            ret = room;
+        }
+        return ret;
+    }
+
     private void showRoom(String roomName) {
         if (!isValidRoomName(roomName)) {
             Toast.makeText(MainActivity.this, "Please enter a valid room name", Toast.LENGTH_SHORT).show();
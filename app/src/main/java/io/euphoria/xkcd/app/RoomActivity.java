@@ -24,11 +24,13 @@ import android.widget.TextView;
 
 import java.util.List;
 
+import io.euphoria.xkcd.app.connection.Connection;
 import io.euphoria.xkcd.app.connection.ConnectionStatus;
 import io.euphoria.xkcd.app.control.RoomController;
 import io.euphoria.xkcd.app.data.Message;
 import io.euphoria.xkcd.app.impl.ui.RoomUIImpl;
 import io.euphoria.xkcd.app.impl.ui.data.MessageForest;
+import io.euphoria.xkcd.app.impl.ui.data.MessageTree;
 import io.euphoria.xkcd.app.impl.ui.data.UserList;
 import io.euphoria.xkcd.app.impl.ui.views.InputBarView;
 import io.euphoria.xkcd.app.impl.ui.views.MessageListAdapter;
@@ -37,6 +39,7 @@ import io.euphoria.xkcd.app.impl.ui.views.MessageListView;
 import io.euphoria.xkcd.app.impl.ui.views.UserListAdapter;
 import io.euphoria.xkcd.app.ui.RoomUI;
 import io.euphoria.xkcd.app.ui.RoomUIFactory;
+import io.euphoria.xkcd.app.ui.UIListener;
 import io.euphoria.xkcd.app.ui.event.LogRequestEvent;
 import io.euphoria.xkcd.app.ui.event.MessageSendEvent;
 import io.euphoria.xkcd.app.ui.event.NewNickEvent;
@@ -55,21 +58,29 @@ public class RoomActivity extends AppCompatActivity {
 
     private class LocalRoomUIImpl extends RoomUIImpl {
 
-        private ConnectionStatus connectionStatus;
+        private boolean statusKnown;
 
         public LocalRoomUIImpl(String roomName) {
             super(roomName);
         }
 
-        public ConnectionStatus getConnectionStatus() {
-            return connectionStatus;
-        }
-
         @Override
         public void setConnectionStatus(ConnectionStatus status) {
+            ConnectionStatus oldStatus = getConnectionStatus();
             super.setConnectionStatus(status);
-            if (connectionStatus != ConnectionStatus.CONNECTED && status == ConnectionStatus.CONNECTED) trimLogs();
-            connectionStatus = status;
+            if (status == ConnectionStatus.CONNECTED) {
+                if (!statusKnown) {
+                    // Re-attached to a live connection (e.g. after rotation); the restored logs stay valid and no
+                    // snapshot is coming.
+                    isPullingLogs = false;
+                } else if (oldStatus != ConnectionStatus.CONNECTED && earliestID != null) {
+                    // Reconnected; a log request made over the old connection is never going to be answered, and
+                    // the snapshot only delivers the messages that were missed (which might be none at all).
+                    isPullingLogs = false;
+                    checkPullLogs();
+                }
+            }
+            statusKnown = true;
         }
 
         @Override
@@ -94,6 +105,7 @@ public class RoomActivity extends AppCompatActivity {
     private static final String KEY_MESSAGES = "messages";
     private static final String KEY_USERS = "users";
     private static final String KEY_INPUT_STATE = "inputState";
+    private static final String KEY_EARLIEST_ID = "earliestID";
 
     private final String TAG = "RoomActivity";
 
@@ -105,6 +117,7 @@ public class RoomActivity extends AppCompatActivity {
 
     private LocalRoomUIImpl roomUI;
     private TextView statusDisplay;
+    private TextView heldIndicator;
     private MessageListView messageList;
     private MessageListAdapter messageAdapter;
     private RecyclerView userList;
@@ -151,6 +164,7 @@ public class RoomActivity extends AppCompatActivity {
 
         // View setup
         statusDisplay = findViewById(R.id.conn_status_display);
+        heldIndicator = findViewById(R.id.held_messages_indicator);
 
         messageList = findViewById(R.id.message_list_view);
         userList = findViewById(R.id.user_list_view);
@@ -159,23 +173,21 @@ public class RoomActivity extends AppCompatActivity {
         LayoutInflater inflater = (LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         inputBar = (InputBarView) inflater.inflate(R.layout.input_bar, messageList, false);
 
-        // Data setup
-        MessageForest messages = null;
-        UserList users = null;
+        // Data setup; a model kept up to date in the background takes precedence over the saved one.
         if (savedInstanceState != null) {
-            messages = savedInstanceState.getParcelable(KEY_MESSAGES);
-            users = savedInstanceState.getParcelable(KEY_USERS);
+            if (!roomUI.isAdopted()) {
+                roomUI.restoreModel((MessageForest) savedInstanceState.getParcelable(KEY_MESSAGES),
+                        (UserList) savedInstanceState.getParcelable(KEY_USERS));
+            }
             SparseArray<Parcelable> inputState = savedInstanceState.getSparseParcelableArray(KEY_INPUT_STATE);
             if (inputState != null) inputBar.restoreHierarchyState(inputState);
+            earliestID = savedInstanceState.getString(KEY_EARLIEST_ID);
+        } else {
+            new Settings(this).addRecentRoom(roomName);
         }
-        if (messages == null) {
-            messages = new MessageForest();
-        }
-        if (users == null) {
-            users = new UserList();
-        }
-        messageAdapter = new MessageListAdapter(messages, inputBar);
-        userListAdapter = new UserListAdapter(users);
+        if (earliestID == null && roomUI.isAdopted()) earliestID = findEarliestID(roomUI.getMessages());
+        messageAdapter = new MessageListAdapter(roomUI.getMessages(), inputBar);
+        userListAdapter = new UserListAdapter(roomUI.getUsers());
         messageList.setAdapter(messageAdapter);
         userList.setAdapter(userListAdapter);
 
@@ -232,7 +244,16 @@ public class RoomActivity extends AppCompatActivity {
         });
 
         // Controller etc. setup
-        roomUI.link(statusDisplay, messageAdapter, userListAdapter, inputBar);
+        roomUI.link(statusDisplay, messageAdapter, userListAdapter, inputBar, heldIndicator);
+        heldIndicator.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                roomUI.releaseHeldMessages();
+                messageList.scrollToPosition(messageAdapter.getItemCount() - 1);
+            }
+        });
+        // Suspend log pulling until the snapshot-event arrives (or openRoom() re-attaches us to a live connection).
+        isPullingLogs = true;
         roomController.openRoom(roomName);
         inputBar.setNickChangeListener(new InputBarView.NickChangeListener() {
             @Override
@@ -250,6 +271,11 @@ public class RoomActivity extends AppCompatActivity {
                     public RoomUI getRoomUI() {
                         return roomUI;
                     }
+
+                    @Override
+                    public void dispatchTo(UIListener l) {
+                        l.onNewNick(this);
+                    }
                 });
                 return true;
             }
@@ -259,7 +285,8 @@ public class RoomActivity extends AppCompatActivity {
             public boolean onSubmit(InputBarView view) {
                 final String text = view.getMessageText();
                 final String parent = view.getMessage().getParent();
-                if (text.isEmpty() || roomUI.getConnectionStatus() != ConnectionStatus.CONNECTED) return false;
+                // While disconnected, the connection keeps the message until it can be sent.
+                if (text.isEmpty()) return false;
                 roomUI.submitEvent(new MessageSendEvent() {
                     @Override
                     public String getText() {
@@ -275,18 +302,22 @@ public class RoomActivity extends AppCompatActivity {
                     public RoomUI getRoomUI() {
                         return roomUI;
                     }
+
+                    @Override
+                    public void dispatchTo(UIListener l) {
+                        l.onMessageSend(this);
+                    }
                 });
                 return true;
             }
         });
-        // Suspend log pulling until the snapshot-event arrives.
-        isPullingLogs = true;
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.actions_room, menu);
+        menu.findItem(R.id.room_show_latency).setVisible(LatencyTracer.isEnabled());
         return true;
     }
 
@@ -307,6 +338,10 @@ public class RoomActivity extends AppCompatActivity {
         startActivity(new Intent(this, AboutActivity.class));
     }
 
+    public void showLatency(MenuItem item) {
+        startActivity(new Intent(this, LatencyActivity.class));
+    }
+
     @Override
     public void onBackPressed() {
         DrawerLayout dl = findViewById(R.id.room_drawer_root);
@@ -317,9 +352,23 @@ public class RoomActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        setFocused(true);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        setFocused(false);
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
+        // Messages held back during overload are not part of the model yet.
+        roomUI.releaseHeldMessages();
         outState.putParcelable(KEY_MESSAGES, messageAdapter.getData());
         outState.putParcelable(KEY_USERS, userListAdapter.getData());
         // RecyclerView suppresses instance state saving for all its children; we override this decision for the
@@ -327,15 +376,38 @@ public class RoomActivity extends AppCompatActivity {
         SparseArray<Parcelable> inputState = new SparseArray<>();
         inputBar.saveHierarchyState(inputState);
         outState.putSparseParcelableArray(KEY_INPUT_STATE, inputState);
+        outState.putString(KEY_EARLIEST_ID, earliestID);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        roomUI.unlink(statusDisplay, messageAdapter, userListAdapter, inputBar);
-        roomController.closeRoom(roomUI.getRoomName());
+        // We might have bounced away in onCreate().
+        if (roomUI == null) return;
+        roomUI.unlink(statusDisplay, messageAdapter, userListAdapter, inputBar, heldIndicator);
+        // Across configuration changes, the retained RoomControllerFragment keeps the connection open, and the next
+        // instance re-attaches to it; the fragment shuts everything down once we are gone for good.
+        if (!isChangingConfigurations()) roomController.closeRoom(roomUI.getRoomName());
         roomController.getRoomUIManager().setRoomUIFactory(null);
-        roomController.shutdown();
+    }
+
+    /* Tell the room's unread counter whether the user is looking at the room */
+    private void setFocused(boolean focused) {
+        // We might have bounced away in onCreate().
+        if (roomUI == null) return;
+        Connection conn = roomController.getConnectionManager().getConnection(roomUI.getRoomName());
+        if (conn != null) conn.getUnreadCounter().setFocused(focused);
+    }
+
+    private static String findEarliestID(MessageForest messages) {
+        String ret = null;
+        // Only the messages currently displayed are considered; that suffices to continue pulling logs from.
+        for (int i = 0; i < messages.size(); i++) {
+            MessageTree mt = messages.get(i);
+            if (mt.getMessage() == null || mt.isPending()) continue;
+            if (ret == null || mt.getID().compareTo(ret) < 0) ret = mt.getID();
+        }
+        return ret;
     }
 
     private void checkPullLogs() {
@@ -360,12 +432,12 @@ public class RoomActivity extends AppCompatActivity {
             public RoomUI getRoomUI() {
                 return roomUI;
             }
-        });
-    }
 
-    private void trimLogs() {
-        MessageListAdapter adapter = (MessageListAdapter) messageList.getAdapter();
-        adapter.clearExceptInputBar();
+            @Override
+            public void dispatchTo(UIListener l) {
+                l.onLogRequest(this);
+            }
+        });
     }
 
 }
@@ -8,6 +8,7 @@ import io.euphoria.xkcd.app.connection.ConnectionManager;
 import io.euphoria.xkcd.app.connection.SessionCookieStore;
 import io.euphoria.xkcd.app.control.RoomController;
 import io.euphoria.xkcd.app.impl.connection.ConnectionManagerImpl;
+import io.euphoria.xkcd.app.impl.connection.ConnectivityMonitor;
 import io.euphoria.xkcd.app.impl.connection.SessionCookieStoreImpl;
 import io.euphoria.xkcd.app.impl.ui.RoomUIManagerImpl;
 import io.euphoria.xkcd.app.ui.RoomUIManager;
@@ -20,6 +21,7 @@ public class RoomControllerFragment extends Fragment {
 
     private RoomUIManager roomUIManager;
     private ConnectionManager connManager;
+    private ConnectivityMonitor connectivityMonitor;
     private RoomController roomController;
 
     @Override
@@ -27,7 +29,11 @@ public class RoomControllerFragment extends Fragment {
         super.onCreate(savedInstanceState);
         roomUIManager = new RoomUIManagerImpl();
         SessionCookieStore sessionCookieStore = new SessionCookieStoreImpl(new Settings(getActivity().getApplicationContext()));
-        connManager = new ConnectionManagerImpl(sessionCookieStore);
+        ConnectionManagerImpl connManagerImpl = new ConnectionManagerImpl(sessionCookieStore,
+                getActivity().getApplicationContext().getFilesDir());
+        connManager = connManagerImpl;
+        connectivityMonitor = new ConnectivityMonitor(getActivity(), connManagerImpl);
+        connectivityMonitor.start();
         roomController = new RoomController(getActivity().getApplicationContext(), roomUIManager, connManager);
         setRetainInstance(true);
     }
@@ -35,6 +41,7 @@ public class RoomControllerFragment extends Fragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        connectivityMonitor.stop();
         roomController.shutdown();
     }
 
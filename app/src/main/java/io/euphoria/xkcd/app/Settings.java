@@ -6,12 +6,17 @@ import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 
 import java.net.HttpCookie;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Settings {
 
     private static final String KEY_CONTINUE_PREV_SESSION = "continue_prev_session";
     private static final String KEY_SESSION_COOKIE = "session_cookie";
+    private static final String KEY_RECENT_ROOMS = "recent_rooms";
+
+    private static final int MAX_RECENT_ROOMS = 10;
 
     private final SharedPreferences preferences;
 
@@ -62,4 +67,33 @@ public class Settings {
         prefEditor.apply();
     }
 
+    /**
+     * Retrieve the names of the rooms joined most recently.
+     *
+     * @return The room names, most recently joined first.
+     */
+    public List<String> getRecentRooms() {
+        String str = preferences.getString(KEY_RECENT_ROOMS, "");
+        if (str.isEmpty()) return new ArrayList<>();
+        return new ArrayList<>(Arrays.asList(str.split(" ")));
+    }
+
+    /**
+     * Record that the given room has been joined, moving it to the front of the recently joined rooms.
+     *
+     * @param roomName The name of the room.
+     */
+    public void addRecentRoom(String roomName) {
+        List<String> rooms = getRecentRooms();
+        rooms.remove(roomName);
+        rooms.add(0, roomName);
+        if (rooms.size() > MAX_RECENT_ROOMS) rooms.subList(MAX_RECENT_ROOMS, rooms.size()).clear();
+        StringBuilder sb = new StringBuilder();
+        for (String r : rooms) {
+            if (sb.length() != 0) sb.append(' ');
+            sb.append(r);
+        }
+        preferences.edit().putString(KEY_RECENT_ROOMS, sb.toString()).apply();
+    }
+
 }
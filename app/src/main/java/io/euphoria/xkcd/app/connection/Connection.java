@@ -1,5 +1,9 @@
 package io.euphoria.xkcd.app.connection;
 
+import java.util.List;
+
+import io.euphoria.xkcd.app.data.Message;
+
 /** Created by Xyzzy on 2017-02-24. */
 
 /* A connection to the Euphoria backend */
@@ -22,6 +26,8 @@ public interface Connection {
     int setNick(String name);
 
     /* Post a message
+     *
+     * The message is kept (across reconnects and restarts) until the server confirms it; see getPendingMessages().
      *
      * @param text The text of the message.
      * @param parent The parent of the message, or null for a new thread.
@@ -29,6 +35,9 @@ public interface Connection {
      */
     int postMessage(String text, String parent);
 
+    /* Own messages that have not been confirmed by the server yet (see PendingMessagesEvent) */
+    List<Message> getPendingMessages();
+
     /* Request room logs
      *
      * @param before The last message ID to return.
@@ -40,6 +49,12 @@ public interface Connection {
     /* The current connection status as an enum value */
     ConnectionStatus getStatus();
 
+    /* Health statistics of this connection */
+    ConnectionMetrics getMetrics();
+
+    /* Unread message and mention counts of this connection's room */
+    UnreadCounter getUnreadCounter();
+
     /* Add an event listener */
     void addEventListener(ConnectionListener l);
 
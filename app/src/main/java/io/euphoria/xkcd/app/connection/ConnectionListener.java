@@ -6,6 +6,7 @@ import io.euphoria.xkcd.app.connection.event.LogEvent;
 import io.euphoria.xkcd.app.connection.event.MessageEvent;
 import io.euphoria.xkcd.app.connection.event.NickChangeEvent;
 import io.euphoria.xkcd.app.connection.event.OpenEvent;
+import io.euphoria.xkcd.app.connection.event.PendingMessagesEvent;
 import io.euphoria.xkcd.app.connection.event.PresenceChangeEvent;
 
 /** Created by Xyzzy on 2017-02-24. */
@@ -25,6 +26,9 @@ public interface ConnectionListener {
     /* Someone (or we) posted a (new) message */
     void onMessage(MessageEvent evt);
 
+    /* Our messages awaiting confirmation changed */
+    void onPendingMessages(PendingMessagesEvent evt);
+
     /* Someone (or we) joined/left */
     void onPresenceChange(PresenceChangeEvent evt);
 
@@ -0,0 +1,39 @@
+package io.euphoria.xkcd.app.connection;
+
+/* Health statistics of a connection, accumulated over all its reconnects
+ *
+ * All times are in milliseconds. Values may be read from any thread.
+ */
+public interface ConnectionMetrics {
+
+    /* The smoothed round-trip time of commands, or -1 if none has been measured yet */
+    long getSmoothedRTT();
+
+    /* The smoothed mean deviation of the round-trip time, or -1 if none has been measured yet */
+    long getRTTVariation();
+
+    /* How far the server's clock is ahead of ours (negative if it is behind), or 0 if unknown
+     *
+     * The server reports its time in whole seconds, so this is only accurate to about one second.
+     */
+    long getClockOffset();
+
+    /* WebSocket payload bytes received, as transmitted */
+    long getBytesIn();
+
+    /* WebSocket payload bytes sent, as transmitted */
+    long getBytesOut();
+
+    /* WebSocket data frames received */
+    long getFramesIn();
+
+    /* WebSocket data frames sent */
+    long getFramesOut();
+
+    /* How often the connection has been re-established after the initial attempt */
+    int getReconnectCount();
+
+    /* The total time spent in the given status so far (including the current stretch, if applicable) */
+    long getTimeInStatus(ConnectionStatus status);
+
+}
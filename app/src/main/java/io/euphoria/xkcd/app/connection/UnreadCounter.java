@@ -0,0 +1,25 @@
+package io.euphoria.xkcd.app.connection;
+
+/* Unread message and @mention counts of a room
+ *
+ * The counts cover live messages by others that arrived after the last-read message. All methods are O(1) and may be
+ * called from any thread.
+ */
+public interface UnreadCounter {
+
+    /* The amount of unread messages */
+    int getUnreadCount();
+
+    /* The amount of unread messages that mention the own nickname */
+    int getMentionCount();
+
+    /* The ID of the newest message that has been read, or null if none has */
+    String getLastReadID();
+
+    /* Mark every message received so far as read */
+    void markRead();
+
+    /* Set whether the room is being looked at; while it is, incoming messages are read immediately */
+    void setFocused(boolean focused);
+
+}
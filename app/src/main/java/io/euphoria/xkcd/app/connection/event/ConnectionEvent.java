@@ -1,6 +1,7 @@
 package io.euphoria.xkcd.app.connection.event;
 
 import io.euphoria.xkcd.app.connection.Connection;
+import io.euphoria.xkcd.app.connection.ConnectionListener;
 
 /** Created by Xyzzy on 2017-02-24. */
 
@@ -19,6 +20,7 @@ import io.euphoria.xkcd.app.connection.Connection;
  * nick-reply        -> NickChangeEvent
  * send-reply        -> MessageEvent
  * who-reply         -> PresenceChangeEvent
+ * Additionally, PendingMessagesEvent-s are generated locally as posted messages are queued and confirmed.
  */
 public interface ConnectionEvent {
 
@@ -28,4 +30,7 @@ public interface ConnectionEvent {
     /* The sequence ID of the request that caused the message, or -1 if none */
     int getSequenceID();
 
+    /* Invoke the method of the given listener corresponding to this event's type */
+    void dispatchTo(ConnectionListener l);
+
 }
@@ -0,0 +1,16 @@
+package io.euphoria.xkcd.app.connection.event;
+
+import java.util.List;
+
+import io.euphoria.xkcd.app.data.Message;
+
+/* Event signifying that the set of own messages not confirmed by the server yet has changed */
+public interface PendingMessagesEvent extends ConnectionEvent {
+
+    /* All currently pending messages, oldest first
+     *
+     * Their ID-s start with Message.PENDING_ID_PREFIX, and their senders are null (i.e. ourselves).
+     */
+    List<Message> getMessages();
+
+}
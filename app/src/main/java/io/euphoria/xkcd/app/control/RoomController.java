@@ -1,14 +1,17 @@
 package io.euphoria.xkcd.app.control;
 
 import android.content.Context;
+import android.os.Build;
 import android.os.Handler;
+import android.view.Choreographer;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
+import io.euphoria.xkcd.app.LatencyTracer;
 import io.euphoria.xkcd.app.connection.Connection;
 import io.euphoria.xkcd.app.connection.ConnectionListener;
 import io.euphoria.xkcd.app.connection.ConnectionManager;
@@ -19,7 +22,10 @@ import io.euphoria.xkcd.app.connection.event.LogEvent;
 import io.euphoria.xkcd.app.connection.event.MessageEvent;
 import io.euphoria.xkcd.app.connection.event.NickChangeEvent;
 import io.euphoria.xkcd.app.connection.event.OpenEvent;
+import io.euphoria.xkcd.app.connection.event.PendingMessagesEvent;
 import io.euphoria.xkcd.app.connection.event.PresenceChangeEvent;
+import io.euphoria.xkcd.app.data.Message;
+import io.euphoria.xkcd.app.data.SessionView;
 import io.euphoria.xkcd.app.ui.RoomUI;
 import io.euphoria.xkcd.app.ui.RoomUIManager;
 import io.euphoria.xkcd.app.ui.UIListener;
@@ -33,20 +39,229 @@ import io.euphoria.xkcd.app.ui.event.UICloseEvent;
 
 public class RoomController {
 
+    /* The listeners tying an open room's connection to its UI */
+    protected static class RoomLink {
+
+        private final Connection conn;
+        private final RoomUI ui;
+        private ConnectionListener connListener;
+        private UIListener uiListener;
+        // Main thread only; handed over when the room is re-linked to a new UI.
+        private SessionView identity;
+
+        public RoomLink(Connection conn, RoomUI ui) {
+            this.conn = conn;
+            this.ui = ui;
+        }
+
+        public void unlink() {
+            conn.removeEventListener(connListener);
+            ui.removeEventListener(uiListener);
+        }
+
+    }
+
+    /* Feeds the older part of a large log to a UI in time-budgeted chunks, newest first */
+    private class Backfill implements Runnable {
+
+        private final RoomUI ui;
+        private final List<Message> messages;
+        // The messages in [0, end) have not been shown yet.
+        private int end;
+        private boolean cancelled;
+
+        public Backfill(RoomUI ui, List<Message> messages, int end) {
+            this.ui = ui;
+            this.messages = messages;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) return;
+            long deadline = System.nanoTime() + BACKFILL_BUDGET_NS;
+            do {
+                showChunk();
+            } while (end > 0 && System.nanoTime() < deadline);
+            if (end > 0) invokeLater(this);
+        }
+
+        public void finish() {
+            while (!cancelled && end > 0) showChunk();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            if (backfills.get(ui) == this) backfills.remove(ui);
+        }
+
+        private void showChunk() {
+            int start = Math.max(0, end - BACKFILL_CHUNK_SIZE);
+            List<Message> chunk = messages.subList(start, end);
+            end = start;
+            // Unregister before the last chunk is shown so that the log request it may trigger is honored.
+            if (end == 0 && backfills.get(ui) == this) backfills.remove(ui);
+            ui.showMessages(chunk);
+        }
+
+    }
+
+    /* A run of consecutive events of the same kind, applied to a UI in one go */
+    private static class Batch {
+
+        public static final int MESSAGES = 0;
+        public static final int SHOW_NICKS = 1;
+        public static final int REMOVE_NICKS = 2;
+        public static final int ACTION = 3;
+
+        private final int kind;
+        private final List<Message> messages;
+        private final List<SessionView> sessions;
+        private Runnable action;
+
+        public Batch(int kind) {
+            this.kind = kind;
+            this.messages = (kind == MESSAGES) ? new ArrayList<Message>() : null;
+            this.sessions = (kind == SHOW_NICKS || kind == REMOVE_NICKS) ? new ArrayList<SessionView>() : null;
+        }
+
+        public void apply(RoomUI ui) {
+            switch (kind) {
+                case MESSAGES:
+                    ui.showMessages(messages);
+                    break;
+                case SHOW_NICKS:
+                    ui.showNicks(sessions);
+                    break;
+                case REMOVE_NICKS:
+                    ui.removeNicks(sessions);
+                    break;
+                default:
+                    action.run();
+                    break;
+            }
+        }
+
+    }
+
+    /* Accumulates the connection events of a room as they arrive, and applies them to its UI once per frame
+     *
+     * Consecutive messages, joins/nick changes, and parts are merged into single showMessages(), showNicks(), and
+     * removeNicks() calls, respectively; everything else is applied in between, in order. Producers may be on any
+     * thread.
+     */
+    private class EventBuffer implements Runnable {
+
+        private final RoomUI ui;
+        private final Choreographer.FrameCallback frameCallback;
+        // Double-buffered; the producers fill queue while the main thread drains spare.
+        private List<Batch> queue;
+        private List<Batch> spare;
+        private boolean scheduled;
+
+        public EventBuffer(RoomUI ui) {
+            this.ui = ui;
+            if (choreographer != null) {
+                frameCallback = new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        run();
+                    }
+                };
+            } else {
+                frameCallback = null;
+            }
+            this.queue = new ArrayList<>();
+            this.spare = new ArrayList<>();
+        }
+
+        public synchronized void addMessage(Message msg) {
+            tail(Batch.MESSAGES).messages.add(msg);
+        }
+
+        public synchronized void addSessions(List<SessionView> sessions, boolean present) {
+            tail(present ? Batch.SHOW_NICKS : Batch.REMOVE_NICKS).sessions.addAll(sessions);
+        }
+
+        public synchronized void addAction(Runnable action) {
+            Batch b = new Batch(Batch.ACTION);
+            b.action = action;
+            queue.add(b);
+            schedule();
+        }
+
+        @Override
+        public void run() {
+            List<Batch> batches;
+            synchronized (this) {
+                batches = queue;
+                queue = spare;
+                spare = batches;
+                scheduled = false;
+            }
+            if (LatencyTracer.isEnabled()) {
+                for (Batch b : batches) {
+                    if (b.kind != Batch.MESSAGES) continue;
+                    for (Message m : b.messages) {
+                        LatencyTracer.getInstance().stamp(m.getID(), LatencyTracer.Stage.DEQUEUE);
+                    }
+                }
+            }
+            for (Batch b : batches) b.apply(ui);
+            batches.clear();
+        }
+
+        private Batch tail(int kind) {
+            if (!queue.isEmpty()) {
+                Batch last = queue.get(queue.size() - 1);
+                if (last.kind == kind) return last;
+            }
+            Batch ret = new Batch(kind);
+            queue.add(ret);
+            schedule();
+            return ret;
+        }
+
+        private void schedule() {
+            if (scheduled) return;
+            scheduled = true;
+            if (frameCallback != null) {
+                choreographer.postFrameCallback(frameCallback);
+            } else {
+                handler.post(this);
+            }
+        }
+
+    }
+
     public static final int DEFAULT_LOG_REQUEST_AMOUNT = 50;
 
+    // Amount of (newest) messages of a log to show immediately; should cover a screenful.
+    public static final int LOG_FIRST_PAINT_AMOUNT = 40;
+    // Amount of messages to show per backfill step and time budget of a backfill run (per frame).
+    private static final int BACKFILL_CHUNK_SIZE = 10;
+    private static final long BACKFILL_BUDGET_NS = 6000000;
+
     private final Context context;
     private final Handler handler;
+    // Null before Jelly Bean; event buffers fall back to the handler then.
+    private final Choreographer choreographer;
     private final RoomUIManager uiManager;
     private final ConnectionManager connManager;
-    private final Set<String> openRooms;
+    private final Map<String, RoomLink> openRooms;
+    // Main thread only.
+    private final Map<RoomUI, Backfill> backfills;
 
     public RoomController(Context ctx, RoomUIManager uiManager, ConnectionManager connManager) {
         this.context = ctx;
         this.handler = new Handler(ctx.getMainLooper());
+        // Constructed on the main thread, whose Choreographer this is.
+        this.choreographer = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) ?
+                Choreographer.getInstance() : null;
         this.uiManager = uiManager;
         this.connManager = connManager;
-        this.openRooms = new HashSet<>();
+        this.openRooms = new HashMap<>();
+        this.backfills = new HashMap<>();
     }
 
     public Context getContext() {
@@ -61,23 +276,44 @@ public class RoomController {
         return connManager;
     }
 
+    /* Open the given room, or attach it to a new UI (e.g. after an Activity was re-created) if already open
+     *
+     * In the latter case, the existing connection is kept, and the new UI is told its status and identity.
+     */
     public void openRoom(String roomName) {
         Connection conn = connManager.connect(roomName);
         RoomUI ui = uiManager.getRoomUI(roomName);
-        if (openRooms.add(roomName)) link(conn, ui);
+        RoomLink old = openRooms.get(roomName);
+        if (old != null) {
+            if (old.ui == ui && old.conn == conn) return;
+            old.unlink();
+            cancelBackfill(old.ui);
+        }
+        boolean resumed = old != null && old.conn == conn;
+        RoomLink link = link(conn, ui, resumed);
+        if (resumed && old.identity != null) {
+            link.identity = old.identity;
+            ui.setIdentity(old.identity);
+        }
+        openRooms.put(roomName, link);
     }
 
     public void closeRoom(String roomName) {
+        RoomLink link = openRooms.remove(roomName);
+        if (link != null) link.unlink();
         Connection conn = connManager.getConnection(roomName);
         if (conn != null) conn.close();
-        RoomUI ui = uiManager.getRoomUI(roomName);
-        if (ui != null) ui.close();
-        openRooms.remove(roomName);
+        // Asking the UI manager for the UI could create a new one just to close it.
+        if (link != null) {
+            cancelBackfill(link.ui);
+            link.ui.close();
+        }
+        uiManager.removeRoomUI(roomName);
     }
 
     public void shutdown() {
         connManager.shutdown();
-        List<String> rooms = new ArrayList<>(openRooms);
+        List<String> rooms = new ArrayList<>(openRooms.keySet());
         for (String roomName : rooms) {
             closeRoom(roomName);
         }
@@ -91,14 +327,42 @@ public class RoomController {
         handler.postDelayed(cb, delay);
     }
 
-    protected void link(final Connection conn, final RoomUI ui) {
-        ui.setConnectionStatus(ConnectionStatus.CONNECTING);
-        conn.addEventListener(new ConnectionListener() {
+    /* Show the given log, painting its newest part immediately and backfilling the rest over the next frames
+     *
+     * Must be called on the main thread.
+     */
+    protected void showLog(RoomUI ui, List<Message> messages) {
+        Backfill prev = backfills.get(ui);
+        if (prev != null) prev.finish();
+        int split = messages.size() - LOG_FIRST_PAINT_AMOUNT;
+        if (split <= 0) {
+            ui.showMessages(messages);
+            return;
+        }
+        Backfill bf = new Backfill(ui, messages, split);
+        backfills.put(ui, bf);
+        ui.showMessages(messages.subList(split, messages.size()));
+        invokeLater(bf);
+    }
+
+    /* Drop the pending backfill of the given UI, if any (e.g. because the log is about to be reloaded) */
+    protected void cancelBackfill(RoomUI ui) {
+        Backfill bf = backfills.get(ui);
+        if (bf != null) bf.cancel();
+    }
+
+    protected RoomLink link(final Connection conn, final RoomUI ui, boolean resumed) {
+        final RoomLink link = new RoomLink(conn, ui);
+        ui.setConnectionStatus(resumed ? conn.getStatus() : ConnectionStatus.CONNECTING);
+        final EventBuffer buffer = new EventBuffer(ui);
+        link.connListener = new ConnectionListener() {
             @Override
             public void onOpen(OpenEvent evt) {
-                invokeLater(new Runnable() {
+                buffer.addAction(new Runnable() {
                     @Override
                     public void run() {
+                        // The connection only delivers messages missed while it was down, so whatever is still
+                        // being backfilled remains valid.
                         ui.setConnectionStatus(ConnectionStatus.CONNECTED);
                     }
                 });
@@ -106,9 +370,10 @@ public class RoomController {
 
             @Override
             public void onIdentity(final IdentityEvent evt) {
-                invokeLater(new Runnable() {
+                buffer.addAction(new Runnable() {
                     @Override
                     public void run() {
+                        link.identity = evt.getIdentity();
                         ui.setIdentity(evt.getIdentity());
                         ui.showNicks(Collections.singletonList(evt.getIdentity()));
                     }
@@ -116,52 +381,43 @@ public class RoomController {
             }
 
             @Override
-            public void onNickChange(final NickChangeEvent evt) {
-                invokeLater(new Runnable() {
-                    @Override
-                    public void run() {
-                        ui.showNicks(Collections.singletonList(evt.getSession()));
-                    }
-                });
+            public void onNickChange(NickChangeEvent evt) {
+                buffer.addSessions(Collections.singletonList(evt.getSession()), true);
             }
 
             @Override
-            public void onMessage(final MessageEvent evt) {
-                invokeLater(new Runnable() {
-                    @Override
-                    public void run() {
-                        ui.showMessages(Collections.singletonList(evt.getMessage()));
-                    }
-                });
+            public void onMessage(MessageEvent evt) {
+                buffer.addMessage(evt.getMessage());
             }
 
             @Override
-            public void onPresenceChange(final PresenceChangeEvent evt) {
-                invokeLater(new Runnable() {
+            public void onPendingMessages(final PendingMessagesEvent evt) {
+                buffer.addAction(new Runnable() {
                     @Override
                     public void run() {
-                        if (evt.isPresent()) {
-                            ui.showNicks(evt.getSessions());
-                        } else {
-                            ui.removeNicks(evt.getSessions());
-                        }
+                        ui.showPendingMessages(evt.getMessages());
                     }
                 });
             }
 
+            @Override
+            public void onPresenceChange(PresenceChangeEvent evt) {
+                buffer.addSessions(evt.getSessions(), evt.isPresent());
+            }
+
             @Override
             public void onLogEvent(final LogEvent evt) {
-                invokeLater(new Runnable() {
+                buffer.addAction(new Runnable() {
                     @Override
                     public void run() {
-                        ui.showMessages(evt.getMessages());
+                        showLog(ui, evt.getMessages());
                     }
                 });
             }
 
             @Override
             public void onClose(final CloseEvent evt) {
-                invokeLater(new Runnable() {
+                buffer.addAction(new Runnable() {
                     @Override
                     public void run() {
                         ui.setConnectionStatus(evt.isFinal() ? ConnectionStatus.DISCONNECTED :
@@ -169,8 +425,8 @@ public class RoomController {
                     }
                 });
             }
-        });
-        ui.addEventListener(new UIListener() {
+        };
+        link.uiListener = new UIListener() {
             @Override
             public void onNewNick(NewNickEvent evt) {
                 conn.setNick(evt.getNewNick());
@@ -183,6 +439,8 @@ public class RoomController {
 
             @Override
             public void onLogRequest(LogRequestEvent evt) {
+                // Older messages are still being backfilled; the last chunk will prompt another request.
+                if (backfills.containsKey(ui)) return;
                 conn.requestLogs(evt.getBefore(), DEFAULT_LOG_REQUEST_AMOUNT);
             }
 
@@ -195,7 +453,12 @@ public class RoomController {
             public void onClose(UICloseEvent evt) {
                 closeRoom(evt.getRoomUI().getRoomName());
             }
-        });
+        };
+        conn.addEventListener(link.connListener);
+        ui.addEventListener(link.uiListener);
+        // Events only report changes; posts may be pending from before (e.g. an earlier run).
+        ui.showPendingMessages(conn.getPendingMessages());
+        return link;
     }
 
 }
@@ -5,6 +5,12 @@ package io.euphoria.xkcd.app.data;
 /* A single Heim message */
 public interface Message {
 
+    /* Prefix of the (client-assigned) ID-s of own messages the server has not confirmed yet
+     *
+     * These sort after the ID-s of all real messages.
+     */
+    String PENDING_ID_PREFIX = "~";
+
     /* The ID of this message as a string */
     String getID();
 
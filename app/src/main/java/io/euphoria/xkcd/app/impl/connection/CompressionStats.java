@@ -0,0 +1,69 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Frame and byte counters for WebSocket payloads before and after permessage-deflate
+ *
+ * "Wire" counts are frame payload sizes as transmitted; "plain" counts are payload sizes after decompression (or
+ * before compression). Without a negotiated compression extension, both are equal. Only data frames are counted.
+ * Safe to use from any thread.
+ */
+public class CompressionStats {
+
+    private final AtomicLong wireBytesIn = new AtomicLong();
+    private final AtomicLong plainBytesIn = new AtomicLong();
+    private final AtomicLong wireBytesOut = new AtomicLong();
+    private final AtomicLong plainBytesOut = new AtomicLong();
+    private final AtomicLong framesIn = new AtomicLong();
+    private final AtomicLong framesOut = new AtomicLong();
+
+    public void recordIncoming(long wire, long plain) {
+        wireBytesIn.addAndGet(wire);
+        plainBytesIn.addAndGet(plain);
+        framesIn.incrementAndGet();
+    }
+
+    public void recordOutgoing(long plain, long wire) {
+        plainBytesOut.addAndGet(plain);
+        wireBytesOut.addAndGet(wire);
+        framesOut.incrementAndGet();
+    }
+
+    public long getWireBytesIn() {
+        return wireBytesIn.get();
+    }
+
+    public long getPlainBytesIn() {
+        return plainBytesIn.get();
+    }
+
+    public long getWireBytesOut() {
+        return wireBytesOut.get();
+    }
+
+    public long getPlainBytesOut() {
+        return plainBytesOut.get();
+    }
+
+    public long getFramesIn() {
+        return framesIn.get();
+    }
+
+    public long getFramesOut() {
+        return framesOut.get();
+    }
+
+    /* The ratio of received wire bytes to decompressed bytes (1.0 if nothing was received yet) */
+    public double getIncomingRatio() {
+        long plain = plainBytesIn.get();
+        return (plain == 0) ? 1.0 : (double) wireBytesIn.get() / plain;
+    }
+
+    @Override
+    public String toString() {
+        return String.format((Locale) null, "%s@%h[in=%d/%d,out=%d/%d]", getClass().getSimpleName(), this,
+                getWireBytesIn(), getPlainBytesIn(), getWireBytesOut(), getPlainBytesOut());
+    }
+
+}
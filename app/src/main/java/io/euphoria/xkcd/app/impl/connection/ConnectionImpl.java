@@ -4,10 +4,15 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import org.json.JSONException;
+
 import java.net.HttpCookie;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+import io.euphoria.xkcd.app.LatencyTracer;
 import io.euphoria.xkcd.app.URLs;
 import io.euphoria.xkcd.app.connection.Connection;
 import io.euphoria.xkcd.app.connection.ConnectionListener;
@@ -15,52 +20,200 @@ import io.euphoria.xkcd.app.connection.ConnectionStatus;
 import io.euphoria.xkcd.app.connection.event.CloseEvent;
 import io.euphoria.xkcd.app.connection.event.ConnectionEvent;
 import io.euphoria.xkcd.app.connection.event.IdentityEvent;
-import io.euphoria.xkcd.app.connection.event.LogEvent;
 import io.euphoria.xkcd.app.connection.event.MessageEvent;
 import io.euphoria.xkcd.app.connection.event.NickChangeEvent;
 import io.euphoria.xkcd.app.connection.event.OpenEvent;
-import io.euphoria.xkcd.app.connection.event.PresenceChangeEvent;
+import io.euphoria.xkcd.app.connection.event.PendingMessagesEvent;
+import io.euphoria.xkcd.app.data.Message;
 
 /** Created by Xyzzy on 2017-04-29. */
 
 public class ConnectionImpl implements Connection {
 
-    private final ConnectionManagerImpl parent;
+    private class PendingMessagesEventImpl implements PendingMessagesEvent {
+
+        private final List<Message> messages;
+
+        public PendingMessagesEventImpl(List<Message> messages) {
+            this.messages = messages;
+        }
+
+        @Override
+        public Connection getConnection() {
+            return ConnectionImpl.this;
+        }
+
+        @Override
+        public int getSequenceID() {
+            return -1;
+        }
+
+        @Override
+        public List<Message> getMessages() {
+            return messages;
+        }
+
+        @Override
+        public void dispatchTo(ConnectionListener l) {
+            l.onPendingMessages(this);
+        }
+
+    }
+
+    // Page size of the log requests filling the gap after a reconnect.
+    public static final int SYNC_PAGE_SIZE = 100;
+    // Maximum amount of log pages to request while looking for posts that might have been delivered.
+    private static final int MAX_RECONCILE_PAGES = 10;
+    // Maximum amount of events to hold back for a speculative connection (see holdEvents()).
+    private static final int MAX_HELD_EVENTS = 1000;
+
+    // Changes when a speculative connection is claimed (see Preconnector).
+    private volatile ConnectionManagerImpl parent;
     private final String roomName;
-    private final List<ConnectionListener> listeners;
+    private volatile ConnectionListener[] listeners;
+    private final Outbox outbox;
+    // Replaced when a speculative connection is claimed (see adopt()).
+    private volatile PostOutbox posts;
+    private final CompressionStats compressionStats;
+    private final ConnectionMetricsImpl metrics;
+    private final ReconnectScheduler reconnectScheduler;
+    private final LogSync logSync;
+    private volatile UnreadTracker unread;
     private ConnectionStatus status;
     private EuphoriaWebSocketClient client;
+    private boolean ready;
     private int seqid;
+    private String agentID;
+    private List<ConnectionEvent> heldEvents;
+    private boolean snapshotReceived;
+    // State of looking up unsure posts (see continueReconcile()): whether that is in progress, the newest message seen
+    // before they became unsure, the messages collected so far (null while waiting for a snapshot), the sequence ID
+    // of the outstanding log request, and how many pages have been requested.
+    private boolean reconciling;
+    private String reconcileSeenID;
+    private List<Message> reconcileLog;
+    private String reconcileRequest;
+    private int reconcilePages;
 
     public ConnectionImpl(ConnectionManagerImpl parent, String roomName) {
         this.parent = parent;
         this.roomName = roomName;
-        this.listeners = new ArrayList<>();
+        this.listeners = new ConnectionListener[0];
+        this.outbox = new Outbox();
+        this.posts = new PostOutbox(parent.getOutboxFile(roomName));
+        this.compressionStats = new CompressionStats();
+        this.reconnectScheduler = new ReconnectScheduler(this);
+        this.logSync = new LogSync();
+        this.unread = parent.getUnreadTracker(roomName);
         this.status = ConnectionStatus.CONNECTING;
+        this.metrics = new ConnectionMetricsImpl(compressionStats, status);
     }
 
     public ConnectionManagerImpl getParent() {
         return parent;
     }
 
+    /* Move this connection to another manager; the old one must have forgotten about it already */
+    void adopt(ConnectionManagerImpl newParent) {
+        parent = newParent;
+        unread = newParent.getUnreadTracker(roomName);
+        // Speculative connections keep no outbox file (and nobody can have posted over them); the posts a previous
+        // run left over are only taken over now, so that they are not sent over a connection nobody asked for.
+        posts = new PostOutbox(newParent.getOutboxFile(roomName));
+        newParent.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                loadStoredPosts();
+            }
+        });
+    }
+
+    /* Hold back all events until the first listener is added, and then deliver them to it
+     *
+     * Used for speculative connections, whose snapshot (etc.) arrives before anyone is interested.
+     */
+    synchronized void holdEvents() {
+        if (listeners.length == 0 && heldEvents == null) heldEvents = new ArrayList<>();
+    }
+
     @Override
     public String getRoomName() {
         return roomName;
     }
 
+    /* Payload byte counters accumulated over all clients of this connection */
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    @Override
+    public ConnectionMetricsImpl getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public UnreadTracker getUnreadCounter() {
+        return unread;
+    }
+
     public synchronized void connect() {
+        if (client != null) metrics.onReconnect();
         // FIXME: Allow specifying a custom URL template.
         client = new EuphoriaWebSocketClient(this, URLs.toURI(URLs.getRoomEndpoint(roomName)));
+        ready = false;
         client.connect();
     }
 
+    /* (Re-)establish the connection unless it has been closed; to be invoked on the scheduler thread
+     *
+     * Must not be called while holding the lock; reading posts left over from a previous run may block for a while.
+     */
+    void reconnect() {
+        List<String> stored = posts.readStored();
+        synchronized (this) {
+            if (status == ConnectionStatus.DISCONNECTED) return;
+            // Posts left over from a previous run go out first.
+            if (stored != null && posts.load(stored, this)) submitPending();
+            connect();
+        }
+    }
+
+    /* Take over the posts left over from a previous run after being claimed; to be invoked on the scheduler thread */
+    private void loadStoredPosts() {
+        List<String> stored = posts.readStored();
+        synchronized (this) {
+            if (stored == null || status == ConnectionStatus.DISCONNECTED || !posts.load(stored, this)) return;
+            submitPending();
+            // Otherwise, the snapshot is yet to come and will do.
+            if (snapshotReceived) startReconcile(Collections.<Message>emptyList(), null, false);
+        }
+    }
+
+    /* Invoked by the parent when network connectivity returns */
+    synchronized void onNetworkAvailable() {
+        reconnectScheduler.onNetworkAvailable();
+    }
+
     @Override
     public void close() {
         parent.remove(this);
-        client.close();
         synchronized (this) {
-            status = ConnectionStatus.DISCONNECTED;
+            setStatus(ConnectionStatus.DISCONNECTED);
+            ready = false;
+            // Pending posts stay on disk, and are sent when the room is joined again.
+            outbox.clear();
+            reconnectScheduler.cancel();
         }
+        parent.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                EuphoriaWebSocketClient c;
+                synchronized (ConnectionImpl.this) {
+                    c = client;
+                }
+                if (c != null) c.close();
+            }
+        });
     }
 
     protected synchronized int sequence() {
@@ -69,17 +222,195 @@ public class ConnectionImpl implements Connection {
 
     @Override
     public int setNick(String name) {
-        return client.sendObject("nick", "name", name);
+        // Only the latest pending nick change is worth sending.
+        return sendCommand("nick", "nick", "name", name);
     }
 
     @Override
-    public int postMessage(String text, String parent) {
-        return client.sendObject("send", "content", text, "parent", parent);
+    public synchronized int postMessage(String text, String parent) {
+        int seq = sequence();
+        posts.add(seq, text, parent);
+        if (ready && client.isOpen()) sendPosts(client);
+        submitPending();
+        return seq;
+    }
+
+    @Override
+    public synchronized List<Message> getPendingMessages() {
+        return posts.getPending();
     }
 
     @Override
     public int requestLogs(String before, int count) {
-        return client.sendObject("log", "n", count, "before", before);
+        return sendCommand("log:" + before, "log", "n", count, "before", before);
+    }
+
+    /* Serialize a command and send it, or queue it in the outbox if the connection is not ready
+     *
+     * @param key The coalescing key for the outbox (see Outbox.add()), or null.
+     * @return The sequence ID of the command, or -1 if it could not be serialized.
+     */
+    protected synchronized int sendCommand(String key, String type, Object... data) {
+        int seq = sequence();
+        String payload;
+        try {
+            payload = EuphoriaWebSocketClient.serializeCommand(seq, type, data);
+        } catch (JSONException exc) {
+            Log.e("ConnectionImpl", "Exception while serializing JSON", exc);
+            return -1;
+        }
+        if (ready && client.isOpen()) {
+            client.send(payload);
+            // Commands queued in the outbox are not timed; that would include the time spent waiting.
+            metrics.onCommandSent(Integer.toString(seq));
+        } else {
+            outbox.add(key, payload);
+        }
+        return seq;
+    }
+
+    /* Called by the current client once the server has greeted it; flushes the outbox in one burst */
+    void onReady(final EuphoriaWebSocketClient source) {
+        parent.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                flushOutbox(source);
+            }
+        });
+    }
+
+    private synchronized void flushOutbox(EuphoriaWebSocketClient source) {
+        if (source != client || status == ConnectionStatus.DISCONNECTED) return;
+        // Sending under the lock ensures that no fresh command overtakes the queued ones.
+        List<String> batch = outbox.drain();
+        collectPosts(batch, false);
+        if (!batch.isEmpty()) source.sendBatch(batch);
+        ready = true;
+        reconnectScheduler.reset();
+    }
+
+    /* Send all posts that can be sent now over the given client */
+    private void sendPosts(EuphoriaWebSocketClient target) {
+        List<String> batch = new ArrayList<>();
+        collectPosts(batch, true);
+        if (!batch.isEmpty()) target.sendBatch(batch);
+    }
+
+    /* Serialize the posts that can be sent now into the given list
+     *
+     * Posts that may have reached the server already (and everything after them) are held back until the next
+     * snapshot tells (see onSnapshot()).
+     */
+    private void collectPosts(List<String> dest, boolean timed) {
+        for (PostOutbox.Entry ent : posts.takeUnsent()) {
+            try {
+                dest.add(EuphoriaWebSocketClient.serializeCommand(ent.getSequenceID(), "send", "content",
+                        ent.getContent(), "parent", ent.getParent()));
+            } catch (JSONException exc) {
+                Log.e("ConnectionImpl", "Exception while serializing JSON", exc);
+                posts.remove(ent);
+                continue;
+            }
+            if (timed) metrics.onCommandSent(Integer.toString(ent.getSequenceID()));
+        }
+    }
+
+    /* Called by the client with the reply to a send command; msg is null if the server refused the post */
+    synchronized void onSendReply(String id, Message msg) {
+        PostOutbox.Entry ent = posts.get(id);
+        if (ent == null) return;
+        if (msg == null) Log.w("ConnectionImpl", "Server refused post " + ent.getID() + " to &" + roomName);
+        posts.remove(ent);
+        submitPending();
+    }
+
+    /* Notify listeners about the current set of pending posts
+     *
+     * Invoked under the lock, so that the notifications arrive in the same order as the changes.
+     */
+    private synchronized void submitPending() {
+        submitEvent(new PendingMessagesEventImpl(posts.getPending()));
+    }
+
+    /* Called by the client with the log of a snapshot
+     *
+     * Returns the messages to deliver, or null if there are none (as opposed to an empty room). If the snapshot does
+     * not reach back to the messages delivered before a reconnect, requesting the missing ones is started.
+     */
+    synchronized List<Message> onSnapshot(List<Message> log) {
+        boolean resumed = logSync.hasHistory();
+        String seenID = logSync.getNewestID();
+        List<Message> ret = logSync.onSnapshot(log);
+        snapshotReceived = true;
+        requestMissingLogs();
+        // An empty snapshot means an empty room.
+        if (posts.needsReconcile()) startReconcile(log, seenID, log.isEmpty());
+        return (resumed && ret.isEmpty()) ? null : ret;
+    }
+
+    /* Start looking up the unsure posts, beginning with the given messages (see continueReconcile()) */
+    private void startReconcile(List<Message> log, String seenID, boolean complete) {
+        // A reconnect while looking up posts does not change what is to be looked for.
+        if (!reconciling) reconcileSeenID = seenID;
+        reconciling = true;
+        reconcileLog = new ArrayList<>(log);
+        reconcilePages = 0;
+        continueReconcile(complete);
+    }
+
+    /* Match the unsure posts against the messages collected so far, or request older ones if those do not suffice
+     *
+     * @param complete Whether the collected messages are the room's entire history.
+     */
+    private void continueReconcile(boolean complete) {
+        long offset = metrics.getClockOffset();
+        boolean known = metrics.isClockOffsetKnown();
+        if (!complete && reconcilePages < MAX_RECONCILE_PAGES &&
+                !posts.isCovered(reconcileLog, reconcileSeenID, offset, known)) {
+            String before = null;
+            for (Message msg : reconcileLog) {
+                if (before == null || msg.getID().compareTo(before) < 0) before = msg.getID();
+            }
+            // Not coalesced with other log requests, so that the reply can be told apart.
+            int seq = sendCommand(null, "log", "n", SYNC_PAGE_SIZE, "before", before);
+            if (seq != -1) {
+                reconcilePages++;
+                reconcileRequest = Integer.toString(seq);
+                return;
+            }
+        }
+        List<Message> log = reconcileLog;
+        reconciling = false;
+        reconcileLog = null;
+        reconcileRequest = null;
+        if (posts.reconcile(log, agentID, reconcileSeenID, offset, known, complete)) submitPending();
+        // If the outbox has not been flushed yet, this happens then.
+        if (ready && client.isOpen()) sendPosts(client);
+    }
+
+    /* Called by the client with the reply to a log request
+     *
+     * Replies to requests made by requestMissingLogs() are de-duplicated and continue filling the gap, and those to
+     * requests made by continueReconcile() are only delivered if they happen to fill the gap; as in onSnapshot(), null
+     * means that there is nothing to deliver.
+     */
+    synchronized List<Message> onLogReply(String id, String before, List<Message> log) {
+        boolean own = id != null && id.equals(reconcileRequest);
+        if (own) {
+            reconcileRequest = null;
+            reconcileLog.addAll(log);
+            // A short page is the beginning of the room's history.
+            continueReconcile(log.size() < SYNC_PAGE_SIZE);
+        }
+        List<Message> ret = logSync.onLogReply(before, log);
+        if (ret == null) return own ? null : log;
+        requestMissingLogs();
+        return ret.isEmpty() ? null : ret;
+    }
+
+    private void requestMissingLogs() {
+        String before = logSync.getPendingBefore();
+        if (before != null) requestLogs(before, SYNC_PAGE_SIZE);
     }
 
     @Override
@@ -87,59 +418,92 @@ public class ConnectionImpl implements Connection {
         return status;
     }
 
+    private synchronized void setStatus(ConnectionStatus newStatus) {
+        status = newStatus;
+        metrics.onStatus(newStatus);
+    }
+
     protected void submitEvent(ConnectionEvent evt) {
-        List<ConnectionListener> listeners;
         synchronized (this) {
-            listeners = new ArrayList<>(this.listeners);
-        }
-        for (ConnectionListener l : listeners) {
+            // Status side effects happen once per event, regardless of the amount of listeners.
             if (evt instanceof OpenEvent) {
-                synchronized (this) {
-                    status = ConnectionStatus.CONNECTED;
-                }
-                l.onOpen((OpenEvent) evt);
+                setStatus(ConnectionStatus.CONNECTED);
             } else if (evt instanceof IdentityEvent) {
-                l.onIdentity((IdentityEvent) evt);
+                agentID = ((IdentityEvent) evt).getIdentity().getAgentID();
+                unread.onIdentity(((IdentityEvent) evt).getIdentity());
             } else if (evt instanceof NickChangeEvent) {
-                l.onNickChange((NickChangeEvent) evt);
+                unread.onNickChange(((NickChangeEvent) evt).getSession());
             } else if (evt instanceof MessageEvent) {
-                l.onMessage((MessageEvent) evt);
-            } else if (evt instanceof PresenceChangeEvent) {
-                l.onPresenceChange((PresenceChangeEvent) evt);
-            } else if (evt instanceof LogEvent) {
-                l.onLogEvent((LogEvent) evt);
+                logSync.onMessage(((MessageEvent) evt).getMessage());
+                unread.onMessage(((MessageEvent) evt).getMessage());
             } else if (evt instanceof CloseEvent) {
-                synchronized (this) {
-                    if (((CloseEvent) evt).isFinal()) {
-                        status = ConnectionStatus.DISCONNECTED;
-                    } else {
-                        status = ConnectionStatus.RECONNECTING;
-                        parent.invokeLater(new Runnable() {
-                            @Override
-                            public void run() {
-                                synchronized (ConnectionImpl.this) {
-                                    if (status != ConnectionStatus.DISCONNECTED)
-                                        connect();
-                                }
-                            }
-                        }, 1000);
-                    }
+                ready = false;
+                snapshotReceived = false;
+                posts.onDisconnect();
+                // Started over with the next snapshot.
+                reconcileLog = null;
+                reconcileRequest = null;
+                if (((CloseEvent) evt).isFinal()) {
+                    setStatus(ConnectionStatus.DISCONNECTED);
+                } else if (status != ConnectionStatus.DISCONNECTED) {
+                    setStatus(ConnectionStatus.RECONNECTING);
+                    reconnectScheduler.schedule();
+                }
+            }
+            if (heldEvents != null) {
+                if (heldEvents.size() < MAX_HELD_EVENTS) {
+                    heldEvents.add(evt);
+                    return;
                 }
-                l.onClose((CloseEvent) evt);
-            } else {
-                Log.e("ConnectionImpl", "Unknown connection event " + evt + "; dropping.");
+                // Nobody is going to see a consistent picture of this room any more.
+                Log.w("ConnectionImpl", "Too many held-back events; dropping speculative connection to &" +
+                        roomName);
+                heldEvents = null;
+                parent.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        close();
+                    }
+                });
+                return;
             }
         }
+        if (evt instanceof MessageEvent && LatencyTracer.isEnabled()) {
+            LatencyTracer.getInstance().stamp(((MessageEvent) evt).getMessage().getID(),
+                    LatencyTracer.Stage.DISPATCH);
+        }
+        // Copy-on-write; a listener (un)registering itself while being notified does not affect this round.
+        ConnectionListener[] listeners = this.listeners;
+        for (ConnectionListener l : listeners) {
+            evt.dispatchTo(l);
+        }
     }
 
     @Override
     public synchronized void addEventListener(ConnectionListener l) {
-        listeners.add(l);
+        ConnectionListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+        newListeners[listeners.length] = l;
+        listeners = newListeners;
+        if (heldEvents != null) {
+            List<ConnectionEvent> held = heldEvents;
+            heldEvents = null;
+            // Delivered under the lock, so that no fresh event can overtake them.
+            for (ConnectionEvent evt : held) {
+                evt.dispatchTo(l);
+            }
+        }
     }
 
     @Override
     public synchronized void removeEventListener(ConnectionListener l) {
-        listeners.remove(l);
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] != l) continue;
+            ConnectionListener[] newListeners = new ConnectionListener[listeners.length - 1];
+            System.arraycopy(listeners, 0, newListeners, 0, i);
+            System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+            listeners = newListeners;
+            return;
+        }
     }
 
     @Nullable
@@ -1,10 +1,14 @@
 package io.euphoria.xkcd.app.impl.connection;
 
-import android.os.Handler;
-import android.os.Looper;
-
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import io.euphoria.xkcd.app.connection.Connection;
 import io.euphoria.xkcd.app.connection.ConnectionManager;
@@ -12,23 +16,63 @@ import io.euphoria.xkcd.app.connection.SessionCookieStore;
 
 /** Created by Xyzzy on 2017-02-24. */
 
-/* Implementation of ConnectionManager */
+/* Implementation of ConnectionManager
+ *
+ * Connection lifecycle work (connecting, closing, reconnecting, flushing outboxes) of all rooms runs on a single
+ * dedicated scheduler thread, so that it neither competes with the UI thread nor depends on an Android Looper.
+ */
 public class ConnectionManagerImpl implements ConnectionManager {
 
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread ret = new Thread(r, "EuphoriaConnectionScheduler");
+            ret.setDaemon(true);
+            return ret;
+        }
+    };
+
     private final SessionCookieStore sessionCookieStore;
-    private final Handler handler;
+    private final File outboxDir;
     private final Map<String, ConnectionImpl> connections;
-
-    public ConnectionManagerImpl(SessionCookieStore sessionCookieStore) {
+    // Survive the connections to their rooms.
+    private final Map<String, UnreadTracker> unreadTrackers;
+    // Guards executor; never held while acquiring other locks (connections schedule work while holding theirs).
+    private final Object executorLock = new Object();
+    private ScheduledThreadPoolExecutor executor;
+    private volatile boolean networkAvailable = true;
+
+    /* Create a manager whose connections keep pending posts in files in outboxDir (or only in memory if it is null) */
+    public ConnectionManagerImpl(SessionCookieStore sessionCookieStore, File outboxDir) {
         this.sessionCookieStore = sessionCookieStore;
-        handler = new Handler(Looper.getMainLooper());
+        this.outboxDir = outboxDir;
         connections = new HashMap<>();
+        unreadTrackers = new HashMap<>();
+    }
+
+    public ConnectionManagerImpl(SessionCookieStore sessionCookieStore) {
+        this(sessionCookieStore, null);
     }
 
     public SessionCookieStore getSessionCookieStore() {
         return sessionCookieStore;
     }
 
+    /* The file to keep the pending posts to the given room in (see PostOutbox), or null if they are not persisted */
+    public File getOutboxFile(String roomName) {
+        return (outboxDir == null) ? null : new File(outboxDir, "outbox-" + roomName + ".jsonl");
+    }
+
+    /* The unread counts of the given room, which are kept across connections to it */
+    public synchronized UnreadTracker getUnreadTracker(String roomName) {
+        UnreadTracker ret = unreadTrackers.get(roomName);
+        if (ret == null) {
+            ret = new UnreadTracker();
+            unreadTrackers.put(roomName, ret);
+        }
+        return ret;
+    }
+
     @Override
     public synchronized Connection getConnection(String roomName) {
         return connections.get(roomName);
@@ -38,17 +82,57 @@ public class ConnectionManagerImpl implements ConnectionManager {
     public synchronized Connection connect(String roomName) {
         ConnectionImpl conn = connections.get(roomName);
         if (conn == null) {
-            conn = new ConnectionImpl(this, roomName);
-            conn.connect();
-            connections.put(roomName, conn);
+            conn = Preconnector.claim(roomName, this);
+            if (conn != null) {
+                connections.put(roomName, conn);
+            } else {
+                conn = createConnection(roomName, false);
+            }
         }
         return conn;
     }
 
+    /* Connect to a room speculatively, holding back its events until someone listens (see Preconnector) */
+    synchronized ConnectionImpl preconnect(String roomName) {
+        ConnectionImpl conn = connections.get(roomName);
+        if (conn == null) conn = createConnection(roomName, true);
+        return conn;
+    }
+
+    private ConnectionImpl createConnection(String roomName, boolean holdEvents) {
+        final ConnectionImpl newConn = new ConnectionImpl(this, roomName);
+        if (holdEvents) newConn.holdEvents();
+        connections.put(roomName, newConn);
+        invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                newConn.reconnect();
+            }
+        });
+        return newConn;
+    }
+
     synchronized void remove(ConnectionImpl conn) {
         connections.remove(conn.getRoomName());
     }
 
+    /* Whether the network is (believed to be) available; reconnection attempts are postponed otherwise */
+    public boolean isNetworkAvailable() {
+        return networkAvailable;
+    }
+
+    /* Update the network availability state, kicking off pending reconnection attempts if it came back */
+    public void setNetworkAvailable(boolean available) {
+        boolean wasAvailable = networkAvailable;
+        networkAvailable = available;
+        if (!available || wasAvailable) return;
+        List<ConnectionImpl> conns;
+        synchronized (this) {
+            conns = new ArrayList<>(connections.values());
+        }
+        for (ConnectionImpl c : conns) c.onNetworkAvailable();
+    }
+
     @Override
     public synchronized boolean hasConnections() {
         return !connections.isEmpty();
@@ -56,17 +140,48 @@ public class ConnectionManagerImpl implements ConnectionManager {
 
     @Override
     public synchronized void shutdown() {
-        for (ConnectionImpl c : connections.values()) {
+        // Closing a connection removes it from the map.
+        for (ConnectionImpl c : new ArrayList<>(connections.values())) {
             c.close();
         }
+        synchronized (executorLock) {
+            if (executor != null) {
+                // Already-submitted closing tasks still run; delayed ones (like reconnects) are dropped.
+                executor.shutdown();
+                executor = null;
+            }
+        }
+        // The shared transport winds down by itself once the last socket is closed.
+    }
+
+    /* The transport all connections' sockets are multiplexed onto
+     *
+     * This is shared by all managers in the process, so that they share one thread and one TLS session cache.
+     */
+    public WebSocketTransport getTransport() {
+        return WebSocketTransport.getDefault();
+    }
+
+    /* The scheduler executor; (re-)created on demand so that the manager remains usable after shutdown() */
+    private ScheduledThreadPoolExecutor getExecutor() {
+        synchronized (executorLock) {
+            if (executor == null) {
+                executor = new ScheduledThreadPoolExecutor(1, THREAD_FACTORY);
+                executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+                executor.setRemoveOnCancelPolicy(true);
+            }
+            return executor;
+        }
     }
 
+    /* Run the given callback on the scheduler thread */
     public void invokeLater(Runnable cb) {
-        handler.post(cb);
+        getExecutor().execute(cb);
     }
 
-    public void invokeLater(Runnable cb, long delay) {
-        handler.postDelayed(cb, delay);
+    /* Run the given callback on the scheduler thread after the given delay (in milliseconds) */
+    public ScheduledFuture<?> invokeLater(Runnable cb, long delay) {
+        return getExecutor().schedule(cb, delay, TimeUnit.MILLISECONDS);
     }
 
 }
@@ -0,0 +1,161 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import android.os.SystemClock;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import io.euphoria.xkcd.app.connection.ConnectionMetrics;
+import io.euphoria.xkcd.app.connection.ConnectionStatus;
+
+/* Implementation of ConnectionMetrics
+ *
+ * Round-trip times are measured from sending a command until its reply arrives, and smoothed as TCP does (RFC 6298).
+ * The clock offset is smoothed over the server's ping-event-s. Byte and frame counts come from the connection's
+ * CompressionStats.
+ */
+public class ConnectionMetricsImpl implements ConnectionMetrics {
+
+    // Commands whose replies are still awaited; older ones are forgotten (their replies may never come).
+    private static final int MAX_PENDING = 64;
+
+    private final CompressionStats compressionStats;
+    private final Map<String, Long> pending;
+    private final Map<ConnectionStatus, Long> statusTimes;
+    private long srtt = -1;
+    private long rttvar = -1;
+    private long clockOffset;
+    private boolean clockOffsetKnown;
+    private int reconnects;
+    private ConnectionStatus status;
+    private long statusSince;
+
+    public ConnectionMetricsImpl(CompressionStats compressionStats, ConnectionStatus initialStatus) {
+        this.compressionStats = compressionStats;
+        this.pending = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_PENDING;
+            }
+        };
+        this.statusTimes = new EnumMap<>(ConnectionStatus.class);
+        this.status = initialStatus;
+        this.statusSince = SystemClock.elapsedRealtime();
+    }
+
+    /* A command with the given ID has just been sent */
+    public synchronized void onCommandSent(String id) {
+        pending.put(id, SystemClock.elapsedRealtime());
+    }
+
+    /* The reply to the command with the given ID has just arrived */
+    public synchronized void onReply(String id) {
+        Long sent = pending.remove(id);
+        if (sent == null) return;
+        long rtt = SystemClock.elapsedRealtime() - sent;
+        if (srtt == -1) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+    }
+
+    /* The server has reported its time (in seconds since the epoch) */
+    public synchronized void onServerTime(long serverSeconds) {
+        // The report is half a round trip old (if we know the round trip time at all).
+        long now = System.currentTimeMillis() - Math.max(srtt, 0) / 2;
+        long sample = serverSeconds * 1000 - now;
+        if (clockOffsetKnown) {
+            clockOffset = (7 * clockOffset + sample) / 8;
+        } else {
+            clockOffset = sample;
+            clockOffsetKnown = true;
+        }
+    }
+
+    /* The connection is being re-established */
+    public synchronized void onReconnect() {
+        reconnects++;
+        // Replies to commands sent over the previous connection will not arrive.
+        pending.clear();
+    }
+
+    /* The status of the connection has changed */
+    public synchronized void onStatus(ConnectionStatus newStatus) {
+        if (newStatus == status) return;
+        long now = SystemClock.elapsedRealtime();
+        addStatusTime(status, now - statusSince);
+        status = newStatus;
+        statusSince = now;
+    }
+
+    @Override
+    public synchronized long getSmoothedRTT() {
+        return srtt;
+    }
+
+    @Override
+    public synchronized long getRTTVariation() {
+        return rttvar;
+    }
+
+    @Override
+    public synchronized long getClockOffset() {
+        return clockOffset;
+    }
+
+    /* Whether the server has reported its time yet (otherwise, getClockOffset() is meaningless) */
+    public synchronized boolean isClockOffsetKnown() {
+        return clockOffsetKnown;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return compressionStats.getWireBytesIn();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return compressionStats.getWireBytesOut();
+    }
+
+    @Override
+    public long getFramesIn() {
+        return compressionStats.getFramesIn();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return compressionStats.getFramesOut();
+    }
+
+    @Override
+    public synchronized int getReconnectCount() {
+        return reconnects;
+    }
+
+    @Override
+    public synchronized long getTimeInStatus(ConnectionStatus s) {
+        Long ret = statusTimes.get(s);
+        long total = (ret == null) ? 0 : ret;
+        if (s == status) total += SystemClock.elapsedRealtime() - statusSince;
+        return total;
+    }
+
+    private void addStatusTime(ConnectionStatus s, long time) {
+        Long old = statusTimes.get(s);
+        statusTimes.put(s, (old == null) ? time : old + time);
+    }
+
+    @Override
+    public String toString() {
+        return String.format((Locale) null, "%s@%h[rtt=%d(%d),offset=%d,in=%d/%d,out=%d/%d,reconnects=%d]",
+                getClass().getSimpleName(), this, getSmoothedRTT(), getRTTVariation(), getClockOffset(),
+                getFramesIn(), getBytesIn(), getFramesOut(), getBytesOut(), getReconnectCount());
+    }
+
+}
@@ -0,0 +1,51 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/* Feeds network connectivity changes into a ConnectionManagerImpl
+ *
+ * Uses the CONNECTIVITY_ACTION broadcast, which (unlike network callbacks) is available on every supported API level
+ * for receivers registered at runtime.
+ */
+public class ConnectivityMonitor extends BroadcastReceiver {
+
+    private final Context context;
+    private final ConnectionManagerImpl connManager;
+    private boolean registered;
+
+    public ConnectivityMonitor(Context context, ConnectionManagerImpl connManager) {
+        this.context = context.getApplicationContext();
+        this.connManager = connManager;
+    }
+
+    public void start() {
+        if (registered) return;
+        context.registerReceiver(this, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        registered = true;
+        update();
+    }
+
+    public void stop() {
+        if (!registered) return;
+        context.unregisterReceiver(this);
+        registered = false;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        update();
+    }
+
+    private void update() {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null) return;
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        connManager.setNetworkAvailable(info != null && info.isConnected());
+    }
+
+}
@@ -0,0 +1,103 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import android.os.Build;
+
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.extensions.DefaultExtension;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.Framedata;
+
+import java.util.Arrays;
+
+/* WebSocket extensions that record frame payload sizes into a CompressionStats
+ *
+ * createDraft() offers permessage-deflate, falling back to an uncompressed connection if the server declines; either
+ * way, payload sizes are recorded before and after (de)compression. Java-WebSocket compresses using
+ * Deflater.deflate(byte[], int, int, int), which only exists from API 19 on, so older devices only offer the latter.
+ */
+public class CountingExtensions {
+
+    /* permessage-deflate with payload size accounting */
+    static class Deflate extends PerMessageDeflateExtension {
+
+        private final CompressionStats stats;
+
+        public Deflate(CompressionStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void decodeFrame(Framedata inputFrame) throws InvalidDataException {
+            int wire = inputFrame.getPayloadData().remaining();
+            super.decodeFrame(inputFrame);
+            stats.recordIncoming(wire, inputFrame.getPayloadData().remaining());
+        }
+
+        @Override
+        public void encodeFrame(Framedata inputFrame) {
+            int plain = inputFrame.getPayloadData().remaining();
+            super.encodeFrame(inputFrame);
+            stats.recordOutgoing(plain, inputFrame.getPayloadData().remaining());
+        }
+
+        @Override
+        public IExtension copyInstance() {
+            return new Deflate(stats);
+        }
+
+    }
+
+    /* Uncompressed fallback with payload size accounting */
+    static class Plain extends DefaultExtension {
+
+        private final CompressionStats stats;
+
+        public Plain(CompressionStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void decodeFrame(Framedata inputFrame) throws InvalidDataException {
+            super.decodeFrame(inputFrame);
+            int size = inputFrame.getPayloadData().remaining();
+            stats.recordIncoming(size, size);
+        }
+
+        @Override
+        public void encodeFrame(Framedata inputFrame) {
+            super.encodeFrame(inputFrame);
+            int size = inputFrame.getPayloadData().remaining();
+            stats.recordOutgoing(size, size);
+        }
+
+        @Override
+        public IExtension copyInstance() {
+            return new Plain(stats);
+        }
+
+    }
+
+    private CountingExtensions() {}
+
+    /* A draft offering permessage-deflate if the platform allows (and accepting an uncompressed connection), counting
+     * into the given stats */
+    public static Draft createDraft(CompressionStats stats) {
+        return createDraft(stats, Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
+    }
+
+    /* A draft offering permessage-deflate only if deflate is true, counting into the given stats */
+    static Draft createDraft(CompressionStats stats, boolean deflate) {
+        if (!deflate) return new Draft_6455(new Plain(stats));
+        return new Draft_6455(Arrays.<IExtension>asList(new Deflate(stats), new Plain(stats)));
+    }
+
+    /* Whether permessage-deflate has been negotiated for the connection using the given draft */
+    public static boolean isCompressed(Draft draft) {
+        return draft instanceof Draft_6455 &&
+                ((Draft_6455) draft).getExtension() instanceof PerMessageDeflateExtension;
+    }
+
+}
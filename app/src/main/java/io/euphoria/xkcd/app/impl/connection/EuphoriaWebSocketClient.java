@@ -2,7 +2,7 @@ package io.euphoria.xkcd.app.impl.connection;
 
 import android.util.Log;
 
-import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ServerHandshake;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -10,16 +10,15 @@ import org.json.JSONObject;
 
 import java.net.HttpCookie;
 import java.net.URI;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 
+import io.euphoria.xkcd.app.LatencyTracer;
 import io.euphoria.xkcd.app.connection.Connection;
+import io.euphoria.xkcd.app.connection.ConnectionListener;
 import io.euphoria.xkcd.app.connection.event.CloseEvent;
 import io.euphoria.xkcd.app.connection.event.ConnectionEvent;
 import io.euphoria.xkcd.app.connection.event.IdentityEvent;
@@ -33,7 +32,7 @@ import io.euphoria.xkcd.app.data.SessionView;
 
 /** Created by Xyzzy on 2017-05-01. */
 
-public class EuphoriaWebSocketClient extends WebSocketClient {
+public class EuphoriaWebSocketClient extends MultiplexedWebSocketClient {
 
     private static class SessionViewImpl implements ServerSessionView {
 
@@ -61,6 +60,13 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
                     base.getServerID(), base.getServerEra());
         }
 
+        public static boolean matches(ServerSessionView sv, String sessionID, String agentID, String name,
+                                      boolean staff, boolean manager, String serverID, String serverEra) {
+            return sv.getSessionID().equals(sessionID) && sv.getAgentID().equals(agentID) &&
+                    sv.getName().equals(name) && sv.isStaff() == staff && sv.isManager() == manager &&
+                    sv.getServerID().equals(serverID) && sv.getServerEra().equals(serverEra);
+        }
+
         @Override
         public String getSessionID() {
             return sessionID;
@@ -149,7 +155,7 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
 
     }
 
-    private class EventImpl implements ConnectionEvent {
+    private abstract class EventImpl implements ConnectionEvent {
 
         private final int seq;
 
@@ -172,7 +178,14 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
 
     }
 
-    private class OpenEventImpl extends EventImpl implements OpenEvent {}
+    private class OpenEventImpl extends EventImpl implements OpenEvent {
+
+        @Override
+        public void dispatchTo(ConnectionListener l) {
+            l.onOpen(this);
+        }
+
+    }
 
     private class IdentityEventImpl extends EventImpl implements IdentityEvent {
 
@@ -187,6 +200,11 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
             return session;
         }
 
+        @Override
+        public void dispatchTo(ConnectionListener l) {
+            l.onIdentity(this);
+        }
+
     }
 
     private class NickChangeEventImpl extends EventImpl implements NickChangeEvent {
@@ -214,6 +232,11 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
             return session.getName();
         }
 
+        @Override
+        public void dispatchTo(ConnectionListener l) {
+            l.onNickChange(this);
+        }
+
     }
 
     private class MessageEventImpl extends EventImpl implements MessageEvent {
@@ -229,6 +252,11 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
             return message;
         }
 
+        @Override
+        public void dispatchTo(ConnectionListener l) {
+            l.onMessage(this);
+        }
+
     }
 
     private class PresenceChangeEventImpl extends EventImpl implements PresenceChangeEvent {
@@ -258,6 +286,11 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
              return present;
          }
 
+         @Override
+         public void dispatchTo(ConnectionListener l) {
+             l.onPresenceChange(this);
+         }
+
      }
 
     private class LogEventImpl extends EventImpl implements LogEvent {
@@ -273,6 +306,11 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
             return messages;
         }
 
+        @Override
+        public void dispatchTo(ConnectionListener l) {
+            l.onLogEvent(this);
+        }
+
     }
 
     private class CloseEventImpl extends EventImpl implements CloseEvent {
@@ -288,28 +326,40 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
             return fin;
         }
 
+        @Override
+        public void dispatchTo(ConnectionListener l) {
+            l.onClose(this);
+        }
+
     }
 
     // FIXME: Allow configuring this somewhere?
     private final static String SESSION_COOKIE_NAME = "a";
+    // Amount of senders not present in the roster (e.g. authors of old messages) to keep around for sharing.
+    private final static int SENDER_CACHE_SIZE = 256;
 
     private final ConnectionImpl parent;
     private final URI endpoint;
-    private final Map<String, ServerSessionView> sessions;
-    private final Queue<String> sendaheadQueue;
-    private boolean ready;
+    // Confined to the transport's thread, like everything touched by onMessage().
+    private final Roster roster;
+    private final Map<String, ServerSessionView> senderCache;
     private boolean closed;
     private String sessionID;
     private String confirmedNick;
 
     public EuphoriaWebSocketClient(ConnectionImpl parent, URI endpoint) {
-        super(endpoint);
+        super(parent.getParent().getTransport(), endpoint,
+                CountingExtensions.createDraft(parent.getCompressionStats()));
 
         this.parent = parent;
         this.endpoint = endpoint;
-        this.sessions = new HashMap<>();
-        this.sendaheadQueue = new ArrayDeque<>();
-        this.ready = false;
+        this.roster = new Roster();
+        this.senderCache = new LinkedHashMap<String, ServerSessionView>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ServerSessionView> eldest) {
+                return size() > SENDER_CACHE_SIZE;
+            }
+        };
         this.closed = false;
         this.sessionID = null;
         this.confirmedNick = "";
@@ -339,26 +389,14 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
                 }
             }
         }
+        Log.i("EuphoriaWebSocketClient", "Connected to " + endpoint + (isCompressed() ? " with" : " without") +
+                " compression");
         parent.submitEvent(new OpenEventImpl());
     }
 
-    private void dispatchReady() {
-        while (true) {
-            String item;
-            synchronized (this) {
-                if (ready) return;
-                item = sendaheadQueue.poll();
-                if (item == null) {
-                    ready = true;
-                    break;
-                }
-            }
-            send(item);
-        }
-    }
-
     @Override
     public void onMessage(String message) {
+        long received = System.nanoTime();
         JSONObject pmessage;
         try {
             pmessage = new JSONObject(message);
@@ -375,9 +413,11 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
             Log.e("EuphoriaWebSocketClient", "Server packet did not contain type", e);
             return;
         }
+        if (type.endsWith("-reply") && pmessage.has("id")) parent.getMetrics().onReply(pmessage.optString("id"));
         try {
             switch (type) {
                 case "ping-event":
+                    parent.getMetrics().onServerTime(data.getLong("time"));
                     send(buildJSONObject("type", "ping-reply", "data", buildJSONObject("time", data.getLong("time")))
                             .toString());
                     break;
@@ -385,7 +425,7 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
                     ServerSessionView identity = parseSessionView(data.getJSONObject("session"));
                     sessionID = identity.getSessionID();
                     submitEvent(new IdentityEventImpl(identity));
-                    dispatchReady();
+                    parent.onReady(this);
                     break;
                 case "join-event":
                     submitEvent(new PresenceChangeEventImpl(Collections.singletonList(parseSessionView(data)),
@@ -395,15 +435,7 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
                     String subtype = data.getString("type");
                     if (subtype.equals("partition")) {
                         String serverID = data.getString("server_id"), serverEra = data.getString("server_era");
-                        List<ServerSessionView> removed = new ArrayList<>();
-                        Iterator<ServerSessionView> iter = sessions.values().iterator();
-                        while (iter.hasNext()) {
-                            ServerSessionView s = iter.next();
-                            if (s.getServerID().equals(serverID) && s.getServerEra().equals(serverEra)) {
-                                iter.remove();
-                                removed.add(s);
-                            }
-                        }
+                        List<ServerSessionView> removed = roster.removePartition(serverID, serverEra);
                         submitEvent(new PresenceChangeEventImpl(Collections.unmodifiableList(removed), false));
                     } else {
                         Log.w("EuphoriaWebSocketClient", "Unknown network-event subtype: " + subtype);
@@ -419,7 +451,7 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
                             break;
                         }
                         newNick = confirmedNick;
-                        session = sessions.get(sessionID);
+                        session = roster.get(sessionID);
                         if (session == null) {
                             Log.e("EuphoriaWebSocketClient",
                                     "Cannot locate our own session while processing a failed nick-reply?!");
@@ -428,7 +460,7 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
                     } else {
                         newNick = data.getString("to");
                         confirmedNick = newNick;
-                        session = sessions.get(data.getString("session_id"));
+                        session = roster.get(data.getString("session_id"));
                         if (session == null) {
                             Log.e("EuphoriaWebSocketClient", "Dropping nick change of unknown session ID " +
                                     data.getString("session_id") + "!");
@@ -441,17 +473,33 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
                     submitEvent(new PresenceChangeEventImpl(Collections.singletonList(parseSessionView(data)),
                             false));
                     break;
-                case "send-event": case "send-reply":
-                    parent.submitEvent(new MessageEventImpl(parseMessage(data)));
+                case "send-event":
+                    Message msg = parseMessage(data);
+                    traceParsed(msg, received);
+                    parent.submitEvent(new MessageEventImpl(msg));
+                    break;
+                case "send-reply":
+                    if (data == null || pmessage.has("error")) {
+                        // The server refused the post (e.g. because it was too long).
+                        Log.e("EuphoriaWebSocketClient", "Post rejected: " + pmessage.optString("error"));
+                        parent.onSendReply(pmessage.optString("id"), null);
+                        break;
+                    }
+                    Message sent = parseMessage(data);
+                    traceParsed(sent, received);
+                    parent.submitEvent(new MessageEventImpl(sent));
+                    // After the actual message, so that its placeholder is not missing in between.
+                    parent.onSendReply(pmessage.optString("id"), sent);
                     break;
                 case "snapshot-event":
                     submitEvent(new PresenceChangeEventImpl(parseSessionViewArray(data.getJSONArray("listing")),
                             true));
-                    submitEvent(new LogEventImpl(parseMessageArray(data.getJSONArray("log"))));
+                    List<Message> log = parent.onSnapshot(parseMessageArray(data.getJSONArray("log")));
+                    if (log != null) submitEvent(new LogEventImpl(log));
                     // A nick from a previous session might be included.
                     if (data.has("nick")) {
                         // Not-null by protocol (the session_id should be that of this client).
-                        session = sessions.get(data.getString("session_id"));
+                        session = roster.get(data.getString("session_id"));
                         submitEvent(new NickChangeEventImpl(new SessionViewImpl(session, data.getString("nick")), session.getName()));
                     }
                     break;
@@ -459,7 +507,9 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
                     submitEvent(new LogEventImpl(Collections.singletonList(parseMessage(data))));
                     break;
                 case "log-reply":
-                    submitEvent(new LogEventImpl(parseMessageArray(data.getJSONArray("log"))));
+                    log = parent.onLogReply(pmessage.optString("id", null), data.optString("before", null),
+                            parseMessageArray(data.getJSONArray("log")));
+                    if (log != null) submitEvent(new LogEventImpl(log));
                     break;
                 case "who-reply":
                     submitEvent(new PresenceChangeEventImpl(parseSessionViewArray(data.getJSONArray("listing")),
@@ -487,26 +537,22 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
         doClose(false);
     }
 
-    public void sendWithQueue(String data) {
-        synchronized (this) {
-            if (!ready) {
-                sendaheadQueue.add(data);
-                return;
-            }
-        }
-        send(data);
+    /* Whether permessage-deflate has been negotiated for the current connection */
+    public boolean isCompressed() {
+        return CountingExtensions.isCompressed(getDraft());
     }
 
-    public int sendObject(String type, Object... data) {
-        int seq = parent.sequence();
-        try {
-            sendWithQueue(buildJSONObject("type", type, "id", Integer.toString(seq),
-                    "data", buildJSONObject(data)).toString());
-        } catch (JSONException exc) {
-            Log.e("EuphoriaWebSocketClient", "Exception while serializing JSON", exc);
-            return -1;
+    /* Send the given serialized commands in order as a single write burst */
+    public void sendBatch(List<String> items) {
+        List<Framedata> frames = new ArrayList<>();
+        for (String item : items) {
+            frames.addAll(getDraft().createFrames(item, true));
         }
-        return seq;
+        sendFrame(frames);
+    }
+
+    static String serializeCommand(int seq, String type, Object... data) throws JSONException {
+        return buildJSONObject("type", type, "id", Integer.toString(seq), "data", buildJSONObject(data)).toString();
     }
 
     public void doClose(boolean fin) {
@@ -521,20 +567,27 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
         close();
     }
 
+    private static void traceParsed(Message msg, long receivedNanos) {
+        if (!LatencyTracer.isEnabled()) return;
+        LatencyTracer.getInstance().begin(msg.getID(), receivedNanos);
+        LatencyTracer.getInstance().stamp(msg.getID(), LatencyTracer.Stage.PARSE);
+    }
+
     private void submitEvent(ConnectionEvent evt) {
         if (evt instanceof IdentityEventImpl) {
             IdentityEventImpl e = (IdentityEventImpl) evt;
-            sessions.put(e.getIdentity().getSessionID(), e.getIdentity());
+            roster.put(e.getIdentity());
         } else if (evt instanceof PresenceChangeEventImpl) {
             PresenceChangeEventImpl e = (PresenceChangeEventImpl) evt;
             if (e.isPresent()) {
-                for (ServerSessionView s : e.getSessionsEx()) sessions.remove(s.getSessionID());
+                for (ServerSessionView s : e.getSessionsEx()) roster.put(s);
             } else {
-                for (ServerSessionView s : e.getSessionsEx()) sessions.put(s.getSessionID(), s);
+                // Partitions have already been removed from the roster by removePartition().
+                for (ServerSessionView s : e.getSessionsEx()) roster.remove(s.getSessionID());
             }
         } else if (evt instanceof NickChangeEventImpl) {
             NickChangeEventImpl e = (NickChangeEventImpl) evt;
-            sessions.put(e.getSession().getSessionID(), e.getSession());
+            roster.put(e.getSession());
         }
         parent.submitEvent(evt);
     }
@@ -556,9 +609,28 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
                 source.getString("server_id"), source.getString("server_era"));
     }
 
-    private static Message parseMessage(final JSONObject source) throws JSONException {
+    /* Parse a message sender, sharing an identical SessionView from the roster or the sender cache if possible */
+    private ServerSessionView parseSender(final JSONObject source) throws JSONException {
+        String sessionID = source.getString("session_id"), agentID = source.getString("id");
+        String name = source.getString("name");
+        boolean staff = source.optBoolean("is_staff"), manager = source.optBoolean("is_manager");
+        String serverID = source.getString("server_id"), serverEra = source.getString("server_era");
+        ServerSessionView ret = roster.get(sessionID);
+        if (ret != null && SessionViewImpl.matches(ret, sessionID, agentID, name, staff, manager, serverID,
+                serverEra))
+            return ret;
+        ret = senderCache.get(sessionID);
+        if (ret != null && SessionViewImpl.matches(ret, sessionID, agentID, name, staff, manager, serverID,
+                serverEra))
+            return ret;
+        ret = new SessionViewImpl(sessionID, agentID, name, staff, manager, serverID, serverEra);
+        senderCache.put(sessionID, ret);
+        return ret;
+    }
+
+    private Message parseMessage(final JSONObject source) throws JSONException {
         return new MessageImpl(source.getString("id"), source.optString("parent", null), source.getLong("time"),
-                parseSessionView(source.getJSONObject("sender")), source.getString("content"),
+                parseSender(source.getJSONObject("sender")), source.getString("content"),
                 source.optBoolean("truncated"));
     }
 
@@ -570,7 +642,7 @@ public class EuphoriaWebSocketClient extends WebSocketClient {
         return Collections.unmodifiableList(accum);
     }
 
-    private static List<Message> parseMessageArray(JSONArray source) throws JSONException {
+    private List<Message> parseMessageArray(JSONArray source) throws JSONException {
         List<Message> accum = new ArrayList<>();
         for (int i = 0; i < source.length(); i++) {
             accum.add(parseMessage(source.getJSONObject(i)));
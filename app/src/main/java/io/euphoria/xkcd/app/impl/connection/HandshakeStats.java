@@ -0,0 +1,84 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Counters and timings of the opening handshakes of WebSocket connections
+ *
+ * "Connect" times span from starting the TCP connection until it is established; "setup" times span from there until
+ * the WebSocket is open (i.e. the TLS handshake, if any, and the HTTP upgrade). Secure connections are split by
+ * whether their TLS session was resumed or negotiated from scratch. Safe to use from any thread.
+ */
+public class HandshakeStats {
+
+    private final AtomicLong plainCount = new AtomicLong();
+    private final AtomicLong fullCount = new AtomicLong();
+    private final AtomicLong resumedCount = new AtomicLong();
+    private final AtomicLong connectNanos = new AtomicLong();
+    private final AtomicLong plainSetupNanos = new AtomicLong();
+    private final AtomicLong fullSetupNanos = new AtomicLong();
+    private final AtomicLong resumedSetupNanos = new AtomicLong();
+
+    public void recordPlain(long connect, long setup) {
+        plainCount.incrementAndGet();
+        connectNanos.addAndGet(connect);
+        plainSetupNanos.addAndGet(setup);
+    }
+
+    public void recordSecure(boolean resumed, long connect, long setup) {
+        connectNanos.addAndGet(connect);
+        if (resumed) {
+            resumedCount.incrementAndGet();
+            resumedSetupNanos.addAndGet(setup);
+        } else {
+            fullCount.incrementAndGet();
+            fullSetupNanos.addAndGet(setup);
+        }
+    }
+
+    public long getPlainCount() {
+        return plainCount.get();
+    }
+
+    public long getFullCount() {
+        return fullCount.get();
+    }
+
+    public long getResumedCount() {
+        return resumedCount.get();
+    }
+
+    /* The average TCP connection time (in milliseconds) over all connections */
+    public double getAverageConnectMillis() {
+        return average(connectNanos, plainCount.get() + fullCount.get() + resumedCount.get());
+    }
+
+    /* The average setup time (in milliseconds) of unencrypted connections */
+    public double getAveragePlainSetupMillis() {
+        return average(plainSetupNanos, plainCount.get());
+    }
+
+    /* The average setup time (in milliseconds) of secure connections with a full TLS handshake */
+    public double getAverageFullSetupMillis() {
+        return average(fullSetupNanos, fullCount.get());
+    }
+
+    /* The average setup time (in milliseconds) of secure connections that resumed a TLS session */
+    public double getAverageResumedSetupMillis() {
+        return average(resumedSetupNanos, resumedCount.get());
+    }
+
+    private static double average(AtomicLong nanos, long count) {
+        return (count == 0) ? 0.0 : nanos.get() / 1e6 / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format((Locale) null, "%s@%h[connect=%.1fms,plain=%d/%.1fms,full=%d/%.1fms,resumed=%d/%.1fms]",
+                getClass().getSimpleName(), this, getAverageConnectMillis(),
+                getPlainCount(), getAveragePlainSetupMillis(),
+                getFullCount(), getAverageFullSetupMillis(),
+                getResumedCount(), getAverageResumedSetupMillis());
+    }
+
+}
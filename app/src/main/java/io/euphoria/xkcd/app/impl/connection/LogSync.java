@@ -0,0 +1,147 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.euphoria.xkcd.app.data.Message;
+
+/* Tracks which messages of a room have been delivered across reconnects, so that only missing ones are passed on
+ *
+ * The delivered messages are all those up to syncedID, plus (if a gap is open) those from gapEnd up to newestID.
+ * After a reconnect, the snapshot covers the newest messages; if it does not reach back to syncedID, the gap in
+ * between is filled with log requests (see getPendingBefore()), newest page first.
+ *
+ * Message ID-s are compared lexicographically, which matches their chronological order. Not thread-safe; the lock of
+ * the owning ConnectionImpl guards it.
+ */
+public class LogSync {
+
+    // Everything up to (and including) this has been delivered; null if nothing has been delivered yet.
+    private String syncedID;
+    // If non-null, messages between syncedID and this (both exclusive) are missing.
+    private String gapEnd;
+    // The newest message delivered so far.
+    private String newestID;
+
+    /* Whether any message has been delivered yet */
+    public boolean hasHistory() {
+        return newestID != null;
+    }
+
+    /* The ID of the newest message delivered so far, or null if there is none */
+    public String getNewestID() {
+        return newestID;
+    }
+
+    /* Whether there is a gap that is being filled */
+    public boolean isSyncing() {
+        return gapEnd != null;
+    }
+
+    /* The "before" ID of the next log request needed to fill the gap, or null if there is none */
+    public String getPendingBefore() {
+        return gapEnd;
+    }
+
+    /* Record a live message */
+    public void onMessage(Message msg) {
+        newestID = max(newestID, msg.getID());
+        if (gapEnd == null) syncedID = newestID;
+    }
+
+    /* Process the log of a (re-)connection's snapshot, returning the messages that have not been delivered yet */
+    public List<Message> onSnapshot(List<Message> log) {
+        if (!hasHistory()) {
+            // Nothing seen so far -- everything is new.
+            newestID = syncedID = maxID(log);
+            return log;
+        }
+        if (log.isEmpty()) return log;
+        List<Message> ret = undelivered(log);
+        String low = minID(log);
+        if (gapEnd == null || compare(low, newestID) > 0) {
+            // The snapshot does not reach the messages seen last, or there was no gap yet; (re-)open it. If an
+            // earlier gap was not filled yet, the part of the log above it is requested again.
+            gapEnd = low;
+        } else {
+            gapEnd = min(gapEnd, low);
+        }
+        newestID = max(newestID, maxID(log));
+        checkClosed();
+        return ret;
+    }
+
+    /* Process the log returned for the given "before" ID
+     *
+     * Returns the messages that have not been delivered yet, or null if the reply does not belong to the gap (in
+     * which case it should be passed on as a whole).
+     */
+    public List<Message> onLogReply(String before, List<Message> log) {
+        if (gapEnd == null || !gapEnd.equals(before)) return null;
+        if (log.isEmpty()) {
+            // The room's history starts in the gap.
+            closeGap();
+            return log;
+        }
+        List<Message> ret = undelivered(log);
+        gapEnd = min(gapEnd, minID(log));
+        checkClosed();
+        return ret;
+    }
+
+    private boolean isDelivered(String id) {
+        if (syncedID != null && compare(id, syncedID) <= 0) return true;
+        return gapEnd != null && compare(id, gapEnd) >= 0 && compare(id, newestID) <= 0;
+    }
+
+    private List<Message> undelivered(List<Message> log) {
+        List<Message> ret = null;
+        for (int i = 0; i < log.size(); i++) {
+            Message msg = log.get(i);
+            if (isDelivered(msg.getID())) {
+                if (ret == null) ret = new ArrayList<>(log.subList(0, i));
+            } else if (ret != null) {
+                ret.add(msg);
+            }
+        }
+        return (ret == null) ? log : ret;
+    }
+
+    private void checkClosed() {
+        if (gapEnd != null && syncedID != null && compare(gapEnd, syncedID) <= 0) closeGap();
+    }
+
+    private void closeGap() {
+        gapEnd = null;
+        syncedID = newestID;
+    }
+
+    private static String minID(List<Message> log) {
+        String ret = null;
+        for (Message msg : log) ret = min(ret, msg.getID());
+        return ret;
+    }
+
+    private static String maxID(List<Message> log) {
+        String ret = null;
+        for (Message msg : log) ret = max(ret, msg.getID());
+        return ret;
+    }
+
+    private static int compare(String a, String b) {
+        return a.compareTo(b);
+    }
+
+    private static String min(String a, String b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return (compare(a, b) <= 0) ? a : b;
+    }
+
+    private static String max(String a, String b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return (compare(a, b) >= 0) ? a : b;
+    }
+
+}
@@ -0,0 +1,217 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import android.util.Log;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.exceptions.InvalidHandshakeException;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.handshake.HandshakeImpl1Client;
+import org.java_websocket.handshake.Handshakedata;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/* A WebSocket client whose I/O is performed by a shared WebSocketTransport
+ *
+ * Mirrors the parts of Java-WebSocket's WebSocketClient API this app uses, but does not own a thread (or two) per
+ * connection. Instances are single-use: after being closed, a new one must be created to reconnect.
+ */
+public abstract class MultiplexedWebSocketClient extends WebSocketAdapter {
+
+    private final WebSocketTransport transport;
+    private final URI uri;
+    private final WebSocketImpl engine;
+    private final Map<String, String> headers;
+    private volatile InetSocketAddress address;
+
+    // Managed by the transport (on its selector thread).
+    SocketChannel socketChannel;
+    SSLEngine sslEngine;
+    volatile long lastActivity;
+    long connectStartTime;
+    long connectedTime;
+    long connectedWallTime;
+
+    public MultiplexedWebSocketClient(WebSocketTransport transport, URI uri, Draft draft) {
+        this.transport = transport;
+        this.uri = uri;
+        this.engine = new WebSocketImpl(this, draft);
+        this.headers = new LinkedHashMap<>();
+    }
+
+    public URI getURI() {
+        return uri;
+    }
+
+    public boolean isSecure() {
+        String scheme = uri.getScheme();
+        return "wss".equals(scheme) || "https".equals(scheme);
+    }
+
+    public Draft getDraft() {
+        return engine.getDraft();
+    }
+
+    public boolean isOpen() {
+        return engine.isOpen();
+    }
+
+    /* Add an HTTP header to the opening handshake; must be called before connect() */
+    public void addHeader(String key, String value) {
+        headers.put(key, value);
+    }
+
+    /* Start connecting
+     *
+     * Does not block; in particular, the server's host name is resolved in the background. Failures are reported via
+     * onError() and onClose().
+     */
+    public void connect() {
+        transport.open(this);
+    }
+
+    public void close() {
+        engine.close();
+        transport.requestWrite(this);
+    }
+
+    public void send(String text) {
+        engine.send(text);
+    }
+
+    public void sendFrame(Collection<Framedata> frames) {
+        engine.sendFrame(frames);
+    }
+
+    public abstract void onOpen(ServerHandshake handshakedata);
+
+    public abstract void onMessage(String message);
+
+    public abstract void onClose(int code, String reason, boolean remote);
+
+    public abstract void onError(Exception ex);
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /* Look up the server's address (blocking); returns whether that succeeded */
+    boolean resolveAddress() {
+        int port = uri.getPort();
+        if (port == -1) port = isSecure() ? 443 : 80;
+        InetSocketAddress addr = new InetSocketAddress(uri.getHost(), port);
+        if (addr.isUnresolved()) return false;
+        address = addr;
+        return true;
+    }
+
+    WebSocketImpl getEngine() {
+        return engine;
+    }
+
+    /* Send the opening handshake; invoked by the transport once the (possibly encrypted) channel is in place */
+    void startHandshake() throws IOException {
+        String path = uri.getRawPath();
+        String query = uri.getRawQuery();
+        if (path == null || path.isEmpty()) path = "/";
+        if (query != null) path += "?" + query;
+        int port = uri.getPort();
+        HandshakeImpl1Client handshake = new HandshakeImpl1Client();
+        handshake.setResourceDescriptor(path);
+        handshake.put("Host", uri.getHost() + (port == -1 ? "" : ":" + port));
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            handshake.put(header.getKey(), header.getValue());
+        }
+        try {
+            engine.startHandshake(handshake);
+        } catch (InvalidHandshakeException exc) {
+            throw new IOException("Could not create handshake", exc);
+        }
+    }
+
+    /* Abort the connection due to the given error; the usual onError() and onClose() callbacks follow */
+    void fail(Exception exc) {
+        onWebsocketError(engine, exc);
+        engine.closeConnection(CloseFrame.ABNORMAL_CLOSE, String.valueOf(exc.getMessage()));
+        SocketChannel channel = socketChannel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.w("MultiplexedWebSocketClient", "Failed closing socket", e);
+            }
+        }
+    }
+
+    @Override
+    public final void onWebsocketOpen(WebSocket conn, Handshakedata handshake) {
+        // SSLEngine-s do not check the host name by themselves.
+        if (sslEngine != null &&
+                !HttpsURLConnection.getDefaultHostnameVerifier().verify(uri.getHost(), sslEngine.getSession())) {
+            onError(new SSLPeerUnverifiedException("Host name verification failed for " + uri.getHost()));
+            engine.close(CloseFrame.POLICY_VALIDATION, "Host name verification failed");
+            return;
+        }
+        transport.recordHandshake(this);
+        onOpen((ServerHandshake) handshake);
+    }
+
+    @Override
+    public final void onWebsocketMessage(WebSocket conn, String message) {
+        onMessage(message);
+    }
+
+    @Override
+    public final void onWebsocketMessage(WebSocket conn, ByteBuffer blob) {
+        // Euphoria does not send binary messages.
+    }
+
+    @Override
+    public final void onWebsocketClose(WebSocket conn, int code, String reason, boolean remote) {
+        onClose(code, reason, remote);
+    }
+
+    @Override
+    public void onWebsocketClosing(WebSocket conn, int code, String reason, boolean remote) {}
+
+    @Override
+    public void onWebsocketCloseInitiated(WebSocket conn, int code, String reason) {}
+
+    @Override
+    public final void onWebsocketError(WebSocket conn, Exception ex) {
+        onError(ex);
+    }
+
+    @Override
+    public void onWriteDemand(WebSocket conn) {
+        transport.requestWrite(this);
+    }
+
+    @Override
+    public InetSocketAddress getLocalSocketAddress(WebSocket conn) {
+        SocketChannel channel = socketChannel;
+        return (channel == null) ? null : (InetSocketAddress) channel.socket().getLocalSocketAddress();
+    }
+
+    @Override
+    public InetSocketAddress getRemoteSocketAddress(WebSocket conn) {
+        SocketChannel channel = socketChannel;
+        return (channel == null) ? null : (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+    }
+
+}
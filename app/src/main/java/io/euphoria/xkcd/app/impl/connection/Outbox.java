@@ -0,0 +1,118 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/* Bounded queue of serialized commands awaiting a ready connection
+ *
+ * Commands carrying a coalescing key supersede any earlier pending command with the same key (e.g. only the latest
+ * nick change is kept). When the bounds are exceeded, the oldest pending commands are dropped.
+ *
+ * Not thread-safe; the owning ConnectionImpl guards all access.
+ */
+public class Outbox {
+
+    private static class Entry {
+
+        private final String key;
+        private final String payload;
+        private boolean dead;
+
+        public Entry(String key, String payload) {
+            this.key = key;
+            this.payload = payload;
+        }
+
+    }
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+    public static final int DEFAULT_MAX_CHARS = 256 * 1024;
+
+    private final int maxEntries;
+    private final int maxChars;
+    private final Queue<Entry> entries;
+    private final Map<String, Entry> keyed;
+    private int liveEntries;
+    private int liveChars;
+
+    public Outbox(int maxEntries, int maxChars) {
+        this.maxEntries = maxEntries;
+        this.maxChars = maxChars;
+        this.entries = new ArrayDeque<>();
+        this.keyed = new HashMap<>();
+    }
+
+    public Outbox() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_CHARS);
+    }
+
+    public int size() {
+        return liveEntries;
+    }
+
+    public boolean isEmpty() {
+        return liveEntries == 0;
+    }
+
+    /* Enqueue a serialized command
+     *
+     * @param key The coalescing key of the command, or null if it should never be merged.
+     * @param payload The serialized command.
+     */
+    public void add(String key, String payload) {
+        Entry ent = new Entry(key, payload);
+        if (key != null) {
+            Entry old = keyed.put(key, ent);
+            if (old != null) kill(old);
+        }
+        entries.add(ent);
+        liveEntries++;
+        liveChars += payload.length();
+        while (liveEntries > maxEntries || liveChars > maxChars && liveEntries > 1) {
+            Entry victim = entries.poll();
+            if (victim.dead) continue;
+            Log.w("Outbox", "Outbox overflow; dropping pending command " + victim.payload);
+            kill(victim);
+        }
+        // Superseded entries linger until polled; do not let them accumulate without bound.
+        if (entries.size() > 2 * maxEntries) {
+            Queue<Entry> live = new ArrayDeque<>(liveEntries);
+            for (Entry e : entries) {
+                if (!e.dead) live.add(e);
+            }
+            entries.clear();
+            entries.addAll(live);
+        }
+    }
+
+    /* Remove and return all pending commands in submission order */
+    public List<String> drain() {
+        List<String> ret = new ArrayList<>(liveEntries);
+        for (Entry ent : entries) {
+            if (!ent.dead) ret.add(ent.payload);
+        }
+        clear();
+        return ret;
+    }
+
+    public void clear() {
+        entries.clear();
+        keyed.clear();
+        liveEntries = 0;
+        liveChars = 0;
+    }
+
+    private void kill(Entry ent) {
+        ent.dead = true;
+        liveEntries--;
+        liveChars -= ent.payload.length();
+        if (ent.key != null && keyed.get(ent.key) == ent) keyed.remove(ent.key);
+    }
+
+}
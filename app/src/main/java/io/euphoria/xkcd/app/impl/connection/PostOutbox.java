@@ -0,0 +1,453 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.euphoria.xkcd.app.data.Message;
+import io.euphoria.xkcd.app.data.SessionView;
+
+/* Durable queue of the messages posted to a room that the server has not confirmed yet
+ *
+ * The queue is mirrored into an append-only file (one JSON record per line: "add"-s of new posts and "done"-s of
+ * confirmed ones), which is compacted when it runs empty or accumulates too many "done"-s; a torn last line (after a
+ * crash) is skipped. All file I/O happens on a single process-wide writer thread, in order.
+ *
+ * A post may have reached the server without its send-reply reaching us (because the connection dropped in between,
+ * or the process died). Such posts are "unsure"; before they are sent again, they are to be looked up in the room's
+ * history (see isCovered() and reconcile()). All posts loaded from the file are unsure. This is a heuristic: a message
+ * with the same content and parent posted by the same agent shortly after the post is taken for it, and a post whose
+ * fate cannot be told from the history the owner is willing to fetch is given up on rather than risking a duplicate.
+ *
+ * Not thread-safe (except for readStored()); the owning ConnectionImpl guards all access.
+ */
+public class PostOutbox {
+
+    /* A pending post; doubles as the placeholder message shown for it */
+    public static class Entry implements Message {
+
+        private final long localID;
+        private final String parent;
+        private final String content;
+        private final long time;
+        private int seq;
+        private boolean sent;
+        private boolean unsure;
+
+        public Entry(long localID, String parent, String content, long time) {
+            this.localID = localID;
+            this.parent = parent;
+            this.content = content;
+            this.time = time;
+        }
+
+        public int getSequenceID() {
+            return seq;
+        }
+
+        @Override
+        public String getID() {
+            return Message.PENDING_ID_PREFIX + Long.toString(localID, 36);
+        }
+
+        @Override
+        public String getParent() {
+            return parent;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return time;
+        }
+
+        @Override
+        public SessionView getSender() {
+            return null;
+        }
+
+        @Override
+        public String getContent() {
+            return content;
+        }
+
+        @Override
+        public boolean isTruncated() {
+            return false;
+        }
+
+    }
+
+    // Amount of "done" records after which the file is rewritten even though posts are still pending.
+    private static final int MAX_DONE_RECORDS = 32;
+    // How much earlier than a post (in milliseconds) the message it turned into may seem to be, given an imprecise
+    // clock offset and the server's coarse timestamps.
+    private static final long MAX_CLOCK_SKEW = 10000;
+    // The same when the clock offset is not known (yet), i.e. our own clock is all there is.
+    private static final long MAX_UNKNOWN_CLOCK_SKEW = 600000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread ret = new Thread(r, "EuphoriaOutboxWriter");
+            ret.setDaemon(true);
+            return ret;
+        }
+    });
+
+    private final File file;
+    private final List<Entry> entries;
+    private long lastLocalID;
+    private int doneRecords;
+    private final AtomicBoolean loaded;
+
+    /* Create an outbox mirrored into the given file, or a volatile one if that is null */
+    public PostOutbox(File file) {
+        this.file = file;
+        this.entries = new ArrayList<>();
+        this.loaded = new AtomicBoolean();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /* The pending posts, oldest first */
+    public List<Message> getPending() {
+        return Collections.<Message>unmodifiableList(new ArrayList<>(entries));
+    }
+
+    /* Whether some pending post has to be looked up in a snapshot before sending anything */
+    public boolean needsReconcile() {
+        for (Entry ent : entries) {
+            if (ent.unsure) return true;
+        }
+        return false;
+    }
+
+    /* Read the records left over from earlier runs, for load(); returns null if that has been done already
+     *
+     * Blocks until the writer thread has caught up; must not be called on the main thread. Unlike everything else,
+     * this is thread-safe, so that the owner need not hold its lock while waiting.
+     */
+    public List<String> readStored() {
+        if (file == null || !loaded.compareAndSet(false, true)) return null;
+        try {
+            return WRITER.submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws IOException {
+                    return readLines();
+                }
+            }).get();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException exc) {
+            Log.e("PostOutbox", "Could not read outbox " + file, exc.getCause());
+            return null;
+        }
+    }
+
+    /* Restore the posts from the given records (as returned by readStored()), placing them before any added since
+     *
+     * Returns whether any posts were loaded. The sequence ID-s of loaded posts are assigned from the given connection.
+     */
+    public boolean load(List<String> lines, ConnectionImpl seqSource) {
+        List<Entry> old = new ArrayList<>();
+        boolean dirty = false;
+        for (String line : lines) {
+            try {
+                JSONObject rec = new JSONObject(line);
+                if (rec.has("done")) {
+                    dirty = true;
+                    long id = rec.getLong("done");
+                    for (Iterator<Entry> it = old.iterator(); it.hasNext(); ) {
+                        if (it.next().localID == id) it.remove();
+                    }
+                } else {
+                    long id = rec.getLong("add");
+                    // Added in this run already (while the load was pending)?
+                    if (find(id) != null) continue;
+                    Entry ent = new Entry(id, rec.optString("parent", null), rec.getString("content"),
+                            rec.getLong("time"));
+                    ent.unsure = true;
+                    old.add(ent);
+                }
+            } catch (JSONException exc) {
+                // Most likely the write of the last line was interrupted.
+                Log.w("PostOutbox", "Skipping malformed outbox record in " + file);
+                dirty = true;
+            }
+        }
+        for (Entry ent : old) {
+            ent.seq = seqSource.sequence();
+            lastLocalID = Math.max(lastLocalID, ent.localID);
+        }
+        entries.addAll(0, old);
+        if (dirty) compact();
+        return !old.isEmpty();
+    }
+
+    /* Enqueue a new post
+     *
+     * @param seq The sequence ID of the command sending the post.
+     */
+    public Entry add(int seq, String content, String parent) {
+        // Unique across runs (as long as the clock does not jump back).
+        long localID = Math.max(System.currentTimeMillis(), lastLocalID + 1);
+        lastLocalID = localID;
+        Entry ent = new Entry(localID, parent, content, System.currentTimeMillis());
+        ent.seq = seq;
+        entries.add(ent);
+        try {
+            JSONObject rec = new JSONObject();
+            rec.put("add", localID);
+            rec.put("parent", parent);
+            rec.put("content", content);
+            rec.put("time", ent.time);
+            append(rec.toString());
+        } catch (JSONException exc) {
+            Log.e("PostOutbox", "Could not serialize outbox record", exc);
+        }
+        return ent;
+    }
+
+    /* The post sent as the command with the given sequence ID, or null if there is none */
+    public Entry get(String seq) {
+        for (Entry ent : entries) {
+            if (ent.sent && Integer.toString(ent.seq).equals(seq)) return ent;
+        }
+        return null;
+    }
+
+    /* The posts that are ready to be sent, in order; those are marked as sent
+     *
+     * An unsure post holds back all posts after it, so that the order is preserved.
+     */
+    public List<Entry> takeUnsent() {
+        List<Entry> ret = new ArrayList<>();
+        for (Entry ent : entries) {
+            if (ent.unsure) break;
+            if (ent.sent) continue;
+            ent.sent = true;
+            ret.add(ent);
+        }
+        return ret;
+    }
+
+    /* The connection carrying the posts sent so far went away; their fate is unknown until reconcile() */
+    public void onDisconnect() {
+        for (Entry ent : entries) {
+            if (!ent.sent) continue;
+            ent.sent = false;
+            ent.unsure = true;
+        }
+    }
+
+    /* Whether the given log reaches back far enough to tell the fate of all unsure posts
+     *
+     * That is the case if it contains seenID (the newest message seen before the posts became unsure, or null if that
+     * is not known) or anything older, or a message that is (with some clock skew) older than the oldest unsure post.
+     *
+     * @param clockOffset The difference between the server's clock and ours, in milliseconds.
+     * @param clockKnown Whether clockOffset has actually been measured.
+     */
+    public boolean isCovered(List<Message> log, String seenID, long clockOffset, boolean clockKnown) {
+        Message oldest = null;
+        for (Message msg : log) {
+            if (oldest == null || msg.getID().compareTo(oldest.getID()) < 0) oldest = msg;
+        }
+        for (Entry ent : entries) {
+            if (ent.unsure) return covers(oldest, ent, seenID, clockOffset, clockKnown);
+        }
+        return true;
+    }
+
+    /* Match unsure posts against the given log, removing those that made it
+     *
+     * A post has made it if a message with the same content and parent by the given agent is in the log, which is
+     * newer than seenID (as for isCovered()) and not older than the post itself (give or take some clock skew); each
+     * message matches at most one post. Unmatched posts are sent again if the log covers them (see isCovered()), or
+     * if complete is true (because the log is the room's entire history); otherwise, they are dropped. Returns whether
+     * any posts were removed.
+     */
+    public boolean reconcile(List<Message> log, String agentID, String seenID, long clockOffset, boolean clockKnown,
+                             boolean complete) {
+        boolean changed = false;
+        long skew = clockKnown ? MAX_CLOCK_SKEW : MAX_UNKNOWN_CLOCK_SKEW;
+        Message oldest = null;
+        List<Message> candidates = new ArrayList<>();
+        for (Message msg : log) {
+            if (oldest == null || msg.getID().compareTo(oldest.getID()) < 0) oldest = msg;
+            if (agentID == null || msg.getSender() == null || !agentID.equals(msg.getSender().getAgentID())) continue;
+            // Messages seen before the disconnect are older than any reply that could have been lost.
+            if (seenID != null && msg.getID().compareTo(seenID) <= 0) continue;
+            candidates.add(msg);
+        }
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+            Entry ent = it.next();
+            if (!ent.unsure) continue;
+            ent.unsure = false;
+            boolean found = false;
+            for (Iterator<Message> ci = candidates.iterator(); ci.hasNext(); ) {
+                Message msg = ci.next();
+                if (!msg.getContent().equals(ent.content) || !equalsOrNull(msg.getParent(), ent.parent)) continue;
+                // The server reports message times in seconds.
+                if (msg.getTimestamp() * 1000 < ent.time + clockOffset - skew) continue;
+                ci.remove();
+                found = true;
+                break;
+            }
+            if (!found && !complete && !covers(oldest, ent, seenID, clockOffset, clockKnown)) {
+                Log.w("PostOutbox", "Could not tell whether post " + ent.getID() + " has been delivered; dropping it");
+                found = true;
+            }
+            if (found) {
+                it.remove();
+                markDone(ent);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /* Remove a post (because the server confirmed or rejected it) */
+    public void remove(Entry ent) {
+        if (entries.remove(ent)) markDone(ent);
+    }
+
+    /* Whether a log whose oldest message is the given one tells the fate of the given post */
+    private static boolean covers(Message oldest, Entry ent, String seenID, long clockOffset, boolean clockKnown) {
+        if (oldest == null) return false;
+        if (seenID != null && oldest.getID().compareTo(seenID) <= 0) return true;
+        long skew = clockKnown ? MAX_CLOCK_SKEW : MAX_UNKNOWN_CLOCK_SKEW;
+        return oldest.getTimestamp() * 1000 < ent.time + clockOffset - skew;
+    }
+
+    private Entry find(long localID) {
+        for (Entry ent : entries) {
+            if (ent.localID == localID) return ent;
+        }
+        return null;
+    }
+
+    private void markDone(Entry ent) {
+        if (entries.isEmpty() || ++doneRecords > MAX_DONE_RECORDS) {
+            compact();
+            return;
+        }
+        try {
+            JSONObject rec = new JSONObject();
+            rec.put("done", ent.localID);
+            append(rec.toString());
+        } catch (JSONException exc) {
+            Log.e("PostOutbox", "Could not serialize outbox record", exc);
+        }
+    }
+
+    /* Replace the file with the records of the currently pending posts (or delete it if there are none) */
+    private void compact() {
+        doneRecords = 0;
+        if (file == null) return;
+        final StringBuilder sb = new StringBuilder();
+        try {
+            for (Entry ent : entries) {
+                JSONObject rec = new JSONObject();
+                rec.put("add", ent.localID);
+                rec.put("parent", ent.parent);
+                rec.put("content", ent.content);
+                rec.put("time", ent.time);
+                sb.append(rec.toString()).append('\n');
+            }
+        } catch (JSONException exc) {
+            Log.e("PostOutbox", "Could not serialize outbox record", exc);
+            return;
+        }
+        WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (sb.length() == 0) {
+                    if (file.exists() && !file.delete()) Log.e("PostOutbox", "Could not delete " + file);
+                    return;
+                }
+                File tmp = new File(file.getPath() + ".tmp");
+                try {
+                    write(tmp, sb.toString(), false);
+                } catch (IOException exc) {
+                    Log.e("PostOutbox", "Could not write " + tmp, exc);
+                    return;
+                }
+                if (!tmp.renameTo(file)) Log.e("PostOutbox", "Could not replace " + file);
+            }
+        });
+    }
+
+    private void append(String record) {
+        if (file == null) return;
+        final String line = record + '\n';
+        WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(file, line, true);
+                } catch (IOException exc) {
+                    Log.e("PostOutbox", "Could not append to " + file, exc);
+                }
+            }
+        });
+    }
+
+    private List<String> readLines() throws IOException {
+        List<String> ret = new ArrayList<>();
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        } catch (FileNotFoundException exc) {
+            return ret;
+        }
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) ret.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return ret;
+    }
+
+    private static void write(File dest, String data, boolean append) throws IOException {
+        OutputStream out = new FileOutputStream(dest, append);
+        try {
+            out.write(data.getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static boolean equalsOrNull(String a, String b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+}
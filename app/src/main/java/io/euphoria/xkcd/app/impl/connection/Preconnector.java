@@ -0,0 +1,94 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import android.content.Context;
+
+import java.util.concurrent.ScheduledFuture;
+
+import io.euphoria.xkcd.app.Settings;
+import io.euphoria.xkcd.app.connection.ConnectionStatus;
+
+/* Speculatively connects to a room the user is likely to join, and hands the connection over once they do
+ *
+ * At most one speculative connection exists at a time; it is closed unless some ConnectionManagerImpl claims it (by
+ * connecting to the same room) within CLAIM_TIMEOUT. Events received in the meantime (like the snapshot) are held
+ * back and delivered to the first listener of the claiming side, so that a claimed connection is indistinguishable
+ * from a fresh one (except for being ready sooner). Speculative connections do not touch the rooms' outbox files; posts
+ * left over from a previous run are only loaded (and sent) once a connection is claimed.
+ */
+public class Preconnector {
+
+    public static final long CLAIM_TIMEOUT = 30000;
+
+    private static Preconnector instance;
+
+    public static synchronized Preconnector getInstance(Context ctx) {
+        if (instance == null) {
+            Context app = ctx.getApplicationContext();
+            instance = new Preconnector(new ConnectionManagerImpl(new SessionCookieStoreImpl(new Settings(app))));
+        }
+        return instance;
+    }
+
+    /* Hand over the speculative connection to the given room (if there is one) to the given manager */
+    static ConnectionImpl claim(String roomName, ConnectionManagerImpl newParent) {
+        Preconnector p;
+        synchronized (Preconnector.class) {
+            p = instance;
+        }
+        return (p == null) ? null : p.doClaim(roomName, newParent);
+    }
+
+    private final ConnectionManagerImpl pool;
+    private ConnectionImpl pending;
+    private ScheduledFuture<?> expiry;
+
+    private Preconnector(ConnectionManagerImpl pool) {
+        this.pool = pool;
+    }
+
+    /* Start connecting to the given room, replacing any other speculative connection */
+    public synchronized void preconnect(String roomName) {
+        if (pending != null) {
+            if (pending.getRoomName().equals(roomName)) return;
+            drop();
+        }
+        final ConnectionImpl conn = pool.preconnect(roomName);
+        pending = conn;
+        expiry = pool.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                expire(conn);
+            }
+        }, CLAIM_TIMEOUT);
+    }
+
+    /* Close the speculative connection, if any */
+    public synchronized void cancel() {
+        if (pending != null) drop();
+    }
+
+    private synchronized ConnectionImpl doClaim(String roomName, ConnectionManagerImpl newParent) {
+        if (pending == null || !pending.getRoomName().equals(roomName)) return null;
+        ConnectionImpl ret = pending;
+        pending = null;
+        expiry.cancel(false);
+        expiry = null;
+        pool.remove(ret);
+        // Gave up already (e.g. because too many events piled up).
+        if (ret.getStatus() == ConnectionStatus.DISCONNECTED) return null;
+        ret.adopt(newParent);
+        return ret;
+    }
+
+    private synchronized void expire(ConnectionImpl conn) {
+        if (pending == conn) drop();
+    }
+
+    private void drop() {
+        pending.close();
+        pending = null;
+        if (expiry != null) expiry.cancel(false);
+        expiry = null;
+    }
+
+}
@@ -0,0 +1,97 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+
+/* Schedules reconnection attempts of a single ConnectionImpl with capped exponential backoff and jitter
+ *
+ * At most one attempt is pending at any time. The backoff is reset once a connection is fully established, and
+ * waiting attempts are fast-forwarded when network connectivity returns. While the network is known to be down,
+ * attempts are postponed until it comes back.
+ *
+ * Attempts run on the scheduler thread of the ConnectionManagerImpl. All methods must be called while holding the lock
+ * of the owning ConnectionImpl.
+ */
+public class ReconnectScheduler {
+
+    public static final long INITIAL_DELAY = 1000;
+    public static final long MAX_DELAY = 60000;
+
+    private final ConnectionImpl conn;
+    private final Random random;
+    private final Runnable attempt = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (conn) {
+                if (!pending) return;
+                pending = false;
+                future = null;
+                if (!conn.getParent().isNetworkAvailable()) {
+                    // Wait for onNetworkAvailable() to get us going again.
+                    waitingForNetwork = true;
+                    return;
+                }
+            }
+            // Outside the lock, since this may block (see ConnectionImpl.reconnect()).
+            conn.reconnect();
+        }
+    };
+    private ScheduledFuture<?> future;
+    private int failures;
+    private boolean pending;
+    private boolean waitingForNetwork;
+
+    public ReconnectScheduler(ConnectionImpl conn) {
+        this.conn = conn;
+        this.random = new Random();
+    }
+
+    public boolean isPending() {
+        return pending || waitingForNetwork;
+    }
+
+    /* The delay before the next attempt, without jitter */
+    public long getNominalDelay() {
+        // Shifting by more than this would overflow anyway; the cap is far lower.
+        int exp = Math.min(failures, 16);
+        return Math.min(INITIAL_DELAY << exp, MAX_DELAY);
+    }
+
+    /* Schedule a reconnection attempt after the current backoff delay, unless one is pending already */
+    public void schedule() {
+        if (isPending()) return;
+        long nominal = getNominalDelay();
+        // "Equal jitter": half of the delay is fixed, the other half random.
+        long delay = nominal / 2 + (long) (random.nextDouble() * (nominal / 2));
+        failures++;
+        pending = true;
+        future = conn.getParent().invokeLater(attempt, delay);
+    }
+
+    /* The connection has been fully established; restart the backoff from scratch */
+    public void reset() {
+        failures = 0;
+    }
+
+    /* Cancel any pending attempt */
+    public void cancel() {
+        pending = false;
+        waitingForNetwork = false;
+        cancelFuture();
+    }
+
+    /* Network connectivity has (re-)appeared; attempt to reconnect immediately if an attempt was due */
+    public void onNetworkAvailable() {
+        if (!isPending()) return;
+        cancelFuture();
+        waitingForNetwork = false;
+        pending = true;
+        future = conn.getParent().invokeLater(attempt, 0);
+    }
+
+    private void cancelFuture() {
+        if (future != null) future.cancel(false);
+        future = null;
+    }
+
+}
@@ -0,0 +1,112 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* The sessions present in a room, indexed by session ID, by server (ID and era), and by agent ID
+ *
+ * Lookups, insertions, and removals of single sessions are O(1); removing all sessions of a partitioned server, or
+ * listing those of an agent, is O(affected sessions).
+ *
+ * Not thread-safe: a Roster is confined to the thread of the WebSocketTransport driving its EuphoriaWebSocketClient.
+ */
+public class Roster {
+
+    private final Map<String, ServerSessionView> bySession;
+    private final Map<String, Set<String>> byServer;
+    private final Map<String, Set<String>> byAgent;
+
+    public Roster() {
+        bySession = new HashMap<>();
+        byServer = new HashMap<>();
+        byAgent = new HashMap<>();
+    }
+
+    private static String serverKey(String serverID, String serverEra) {
+        return serverID + '\u0000' + serverEra;
+    }
+
+    private static void index(Map<String, Set<String>> index, String key, String sessionID) {
+        Set<String> group = index.get(key);
+        if (group == null) {
+            group = new HashSet<>();
+            index.put(key, group);
+        }
+        group.add(sessionID);
+    }
+
+    private static void unindex(Map<String, Set<String>> index, String key, String sessionID) {
+        Set<String> group = index.get(key);
+        if (group == null) return;
+        group.remove(sessionID);
+        if (group.isEmpty()) index.remove(key);
+    }
+
+    public int size() {
+        return bySession.size();
+    }
+
+    public ServerSessionView get(String sessionID) {
+        return bySession.get(sessionID);
+    }
+
+    /* Insert or replace the given session */
+    public void put(ServerSessionView session) {
+        ServerSessionView old = bySession.put(session.getSessionID(), session);
+        if (old != null) {
+            if (old.getServerID().equals(session.getServerID()) && old.getServerEra().equals(session.getServerEra()) &&
+                    old.getAgentID().equals(session.getAgentID()))
+                return;
+            unindexSession(old);
+        }
+        index(byServer, serverKey(session.getServerID(), session.getServerEra()), session.getSessionID());
+        index(byAgent, session.getAgentID(), session.getSessionID());
+    }
+
+    /* Remove the session with the given ID, returning it (or null if it was not present) */
+    public ServerSessionView remove(String sessionID) {
+        ServerSessionView old = bySession.remove(sessionID);
+        if (old != null) unindexSession(old);
+        return old;
+    }
+
+    /* Remove every session hosted by the given server, returning the removed sessions */
+    public List<ServerSessionView> removePartition(String serverID, String serverEra) {
+        Set<String> group = byServer.remove(serverKey(serverID, serverEra));
+        if (group == null) return Collections.emptyList();
+        List<ServerSessionView> ret = new ArrayList<>(group.size());
+        for (String sid : group) {
+            ServerSessionView s = bySession.remove(sid);
+            if (s == null) continue;
+            unindex(byAgent, s.getAgentID(), sid);
+            ret.add(s);
+        }
+        return ret;
+    }
+
+    /* All sessions belonging to the given agent */
+    public List<ServerSessionView> getByAgent(String agentID) {
+        Set<String> group = byAgent.get(agentID);
+        if (group == null) return Collections.emptyList();
+        List<ServerSessionView> ret = new ArrayList<>(group.size());
+        for (String sid : group) ret.add(bySession.get(sid));
+        return ret;
+    }
+
+    public void clear() {
+        bySession.clear();
+        byServer.clear();
+        byAgent.clear();
+    }
+
+    private void unindexSession(ServerSessionView session) {
+        unindex(byServer, serverKey(session.getServerID(), session.getServerEra()), session.getSessionID());
+        unindex(byAgent, session.getAgentID(), session.getSessionID());
+    }
+
+}
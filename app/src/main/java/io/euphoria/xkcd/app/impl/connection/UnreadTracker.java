@@ -0,0 +1,87 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import io.euphoria.xkcd.app.connection.UnreadCounter;
+import io.euphoria.xkcd.app.data.Message;
+import io.euphoria.xkcd.app.data.SessionView;
+import io.euphoria.xkcd.app.impl.ui.UIUtils;
+
+/* Implementation of UnreadCounter
+ *
+ * Fed by ConnectionImpl as events are ingested (before they are dispatched to any listener), so that the counts are
+ * maintained incrementally without walking any history. Outlives individual connections; see
+ * ConnectionManagerImpl.getUnreadTracker().
+ */
+public class UnreadTracker implements UnreadCounter {
+
+    private String lastReadID;
+    // The newest message seen at all; becomes the last-read one once the room is looked at.
+    private String newestID;
+    private int unread;
+    private int mentions;
+    private boolean focused;
+    private String ownSessionID;
+    private String ownAgentID;
+    private String normalizedNick = "";
+
+    @Override
+    public synchronized int getUnreadCount() {
+        return unread;
+    }
+
+    @Override
+    public synchronized int getMentionCount() {
+        return mentions;
+    }
+
+    @Override
+    public synchronized String getLastReadID() {
+        return lastReadID;
+    }
+
+    @Override
+    public synchronized void markRead() {
+        if (newestID != null) lastReadID = newestID;
+        unread = 0;
+        mentions = 0;
+    }
+
+    @Override
+    public synchronized void setFocused(boolean focused) {
+        this.focused = focused;
+        if (focused) markRead();
+    }
+
+    /* The own identity has been (re-)established */
+    public synchronized void onIdentity(SessionView identity) {
+        ownSessionID = identity.getSessionID();
+        ownAgentID = identity.getAgentID();
+        setNick(identity.getName());
+    }
+
+    /* Some session has changed its nickname */
+    public synchronized void onNickChange(SessionView session) {
+        if (session.getSessionID().equals(ownSessionID)) setNick(session.getName());
+    }
+
+    /* A live message has arrived */
+    public synchronized void onMessage(Message msg) {
+        String id = msg.getID();
+        // Replays (e.g. of edits) and messages from the past are not new.
+        if (newestID != null && id.compareTo(newestID) <= 0) return;
+        newestID = id;
+        SessionView sender = msg.getSender();
+        boolean own = sender != null && ownAgentID != null && ownAgentID.equals(sender.getAgentID());
+        // Posting into a room implies having read it.
+        if (focused || own) {
+            markRead();
+            return;
+        }
+        unread++;
+        if (UIUtils.mentions(msg.getContent(), normalizedNick)) mentions++;
+    }
+
+    private void setNick(String nick) {
+        normalizedNick = (nick == null) ? "" : UIUtils.normalizeNick(nick);
+    }
+
+}
@@ -0,0 +1,421 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import android.util.Log;
+
+import org.java_websocket.SocketChannelIOHelper;
+import org.java_websocket.SSLSocketChannel2;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WrappedByteChannel;
+import org.java_websocket.framing.CloseFrame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/* Runs any amount of MultiplexedWebSocketClient-s on a single selector thread
+ *
+ * Socket I/O and WebSocket frame decoding happen on the selector thread, which reuses one read buffer for all
+ * connections (the engines copy partial frames out of it). TLS uses SSLEngine-s whose delegated tasks run on a small
+ * shared pool that only keeps threads around while handshakes are in progress. All secure connections share one
+ * SSLContext, whose client session cache lets reconnects and further rooms on the same host resume their TLS sessions
+ * instead of negotiating new ones.
+ *
+ * Host names are resolved on another small pool, so that neither the selector thread nor the callers of connect()
+ * wait for DNS.
+ *
+ * The clients' callbacks (onOpen(), onMessage(), etc.) are invoked on the selector thread and must not block.
+ *
+ * The thread is started on demand and exits by itself once no connections are left, so a single process-wide
+ * instance (see getDefault()) can be shared by everyone.
+ */
+public class WebSocketTransport {
+
+    private static final String TAG = "WebSocketTransport";
+
+    // How long select() may sleep before idle connections are checked.
+    private static final long SELECT_TIMEOUT = 5000;
+    // Euphoria pings every 30 seconds; a connection that has been silent for much longer is dead.
+    public static final long IDLE_TIMEOUT = 90000;
+    // Amount of host name lookups that may be in progress at once.
+    private static final int RESOLVER_THREADS = 2;
+    // TLS sessions to remember, and for how long (in seconds); there is usually only one host to talk to.
+    public static final int SESSION_CACHE_SIZE = 16;
+    public static final int SESSION_TIMEOUT = 8 * 3600;
+
+    private static ThreadFactory namedThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread ret = new Thread(r, name);
+                ret.setDaemon(true);
+                return ret;
+            }
+        };
+    }
+
+    private static WebSocketTransport defaultInstance;
+
+    /* The process-wide shared transport */
+    public static synchronized WebSocketTransport getDefault() {
+        if (defaultInstance == null) defaultInstance = new WebSocketTransport();
+        return defaultInstance;
+    }
+
+    private final Queue<Runnable> tasks;
+    private final ByteBuffer readBuffer;
+    private final ExecutorService tlsTaskExecutor;
+    private final ExecutorService resolverExecutor;
+    private final long idleTimeout;
+    private final HandshakeStats handshakeStats;
+    private SSLContext sslContext;
+    private volatile Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+
+    public WebSocketTransport() {
+        this(IDLE_TIMEOUT);
+    }
+
+    /* Create a transport that fails connections after the given amount of milliseconds without incoming data */
+    WebSocketTransport(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        tasks = new ConcurrentLinkedQueue<>();
+        // Not a direct buffer: WebSocketImpl.decode() accesses the backing array (for logging).
+        readBuffer = ByteBuffer.allocate(WebSocketImpl.RCVBUF);
+        ThreadPoolExecutor tlsExec = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), namedThreadFactory("EuphoriaTLSTasks"));
+        tlsTaskExecutor = tlsExec;
+        ThreadPoolExecutor resolverExec = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), namedThreadFactory("EuphoriaResolver"));
+        resolverExec.allowCoreThreadTimeOut(true);
+        resolverExecutor = resolverExec;
+        handshakeStats = new HandshakeStats();
+    }
+
+    public HandshakeStats getHandshakeStats() {
+        return handshakeStats;
+    }
+
+    /* Start the selector thread if it is not running yet */
+    public synchronized void start() throws IOException {
+        if (running) return;
+        final Selector sel = Selector.open();
+        selector = sel;
+        running = true;
+        thread = namedThreadFactory("EuphoriaWebSocketTransport").newThread(new Runnable() {
+            @Override
+            public void run() {
+                loop(sel);
+            }
+        });
+        thread.start();
+    }
+
+    /* Stop the selector thread, forcibly closing all connections that are still open
+     *
+     * Waits for the thread to finish, so that a subsequent start() does not race with it.
+     */
+    public void shutdown() {
+        Thread oldThread;
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            selector.wakeup();
+            oldThread = thread;
+        }
+        if (oldThread == Thread.currentThread()) return;
+        try {
+            oldThread.join();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* The SSLContext used for secure connections
+     *
+     * Unless configured otherwise, this is a context of our own with the platform's default key and trust managers, so
+     * that configuring its session cache does not affect the rest of the process.
+     */
+    public synchronized SSLContext getSSLContext() {
+        if (sslContext == null) {
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                setSSLContext(context);
+            } catch (Exception exc) {
+                throw new RuntimeException("No TLS SSLContext available?!", exc);
+            }
+        }
+        return sslContext;
+    }
+
+    /* Use the given SSLContext for all secure connections from now on, configuring its client session cache */
+    public synchronized void setSSLContext(SSLContext context) {
+        SSLSessionContext sessions = context.getClientSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT);
+        }
+        sslContext = context;
+    }
+
+    /* Record the handshake timings of the given client; invoked as its WebSocket connection opens */
+    void recordHandshake(MultiplexedWebSocketClient client) {
+        long now = System.nanoTime();
+        long connect = client.connectedTime - client.connectStartTime;
+        long setup = now - client.connectedTime;
+        if (client.sslEngine == null) {
+            handshakeStats.recordPlain(connect, setup);
+            return;
+        }
+        // A resumed session predates the TCP connection it is used on.
+        SSLSession session = client.sslEngine.getSession();
+        boolean resumed = session.getCreationTime() < client.connectedWallTime;
+        handshakeStats.recordSecure(resumed, connect, setup);
+        Log.d(TAG, "TLS session " + (resumed ? "resumed" : "established") + " in " + setup / 1000000 + " ms; " +
+                handshakeStats);
+    }
+
+    /* Begin connecting the given client; to be invoked via MultiplexedWebSocketClient.connect()
+     *
+     * Returns immediately; the server's address is resolved on the resolver pool, which then hands the client over to
+     * the selector thread (or fails it if the address cannot be resolved).
+     */
+    void open(final MultiplexedWebSocketClient client) {
+        resolverExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!client.resolveAddress()) {
+                    client.fail(new UnknownHostException("Could not resolve " + client.getURI().getHost()));
+                    return;
+                }
+                // Queued before starting, so that the thread cannot exit for being idle in between.
+                runOnSelectorThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        doOpen(client);
+                    }
+                });
+                try {
+                    start();
+                } catch (IOException exc) {
+                    client.fail(exc);
+                }
+            }
+        });
+    }
+
+    /* Make the selector thread try to flush the given client's outgoing data (or to complete its closing) */
+    void requestWrite(final MultiplexedWebSocketClient client) {
+        runOnSelectorThread(new Runnable() {
+            @Override
+            public void run() {
+                flush(client);
+            }
+        });
+    }
+
+    private void runOnSelectorThread(Runnable r) {
+        tasks.add(r);
+        Selector sel = selector;
+        if (sel != null) sel.wakeup();
+    }
+
+    private void loop(Selector sel) {
+        // A restart after shutdown() might have replaced the selector before we noticed.
+        while (running && selector == sel) {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            try {
+                sel.select(Math.min(SELECT_TIMEOUT, idleTimeout));
+            } catch (IOException exc) {
+                Log.e(TAG, "Selector failed", exc);
+                break;
+            }
+            Iterator<SelectionKey> iter = sel.selectedKeys().iterator();
+            while (iter.hasNext()) {
+                SelectionKey key = iter.next();
+                iter.remove();
+                handle(key);
+            }
+            checkIdle(sel);
+            // Nothing left to do; open() will start a new thread when needed.
+            if (sel.keys().isEmpty()) {
+                synchronized (this) {
+                    if (tasks.isEmpty() && selector == sel) running = false;
+                }
+            }
+        }
+        // Tear everything down.
+        for (SelectionKey key : new ArrayList<>(sel.keys())) {
+            MultiplexedWebSocketClient client = (MultiplexedWebSocketClient) key.attachment();
+            client.getEngine().closeConnection(CloseFrame.GOING_AWAY, "Transport shut down");
+        }
+        try {
+            sel.close();
+        } catch (IOException exc) {
+            Log.e(TAG, "Failed closing selector", exc);
+        }
+        // Remaining tasks are left for the next start(); they are harmless for connections closed above.
+        synchronized (this) {
+            if (selector == sel) {
+                running = false;
+                selector = null;
+                thread = null;
+            }
+        }
+    }
+
+    private void doOpen(MultiplexedWebSocketClient client) {
+        // The client might have been closed while this was pending.
+        if (client.getEngine().isClosing() || client.getEngine().isClosed()) return;
+        URI uri = client.getURI();
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            client.socketChannel = channel;
+            client.lastActivity = System.currentTimeMillis();
+            client.connectStartTime = System.nanoTime();
+            // The address has been resolved by open(), off this thread.
+            channel.connect(client.getAddress());
+            SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT, client);
+            client.getEngine().setSelectionKey(key);
+            client.getEngine().setChannel(channel);
+        } catch (IOException exc) {
+            if (channel != null) closeQuietly(channel);
+            client.fail(exc);
+        }
+        Log.d(TAG, "Connecting to " + uri);
+    }
+
+    private void handle(SelectionKey key) {
+        MultiplexedWebSocketClient client = (MultiplexedWebSocketClient) key.attachment();
+        try {
+            if (key.isConnectable()) finishConnect(client, key);
+            if (key.isValid() && key.isReadable()) read(client);
+            if (key.isValid() && key.isWritable()) flush(client);
+        } catch (IOException | CancelledKeyException exc) {
+            client.fail(exc);
+        } catch (RuntimeException exc) {
+            Log.e(TAG, "Unexpected exception while handling connection", exc);
+            client.fail(exc);
+        }
+    }
+
+    private void finishConnect(MultiplexedWebSocketClient client, SelectionKey key) throws IOException {
+        SocketChannel channel = client.socketChannel;
+        if (!channel.finishConnect()) return;
+        client.connectedTime = System.nanoTime();
+        client.connectedWallTime = System.currentTimeMillis();
+        client.lastActivity = client.connectedWallTime;
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        ByteChannel wrapped = channel;
+        if (client.isSecure()) {
+            InetSocketAddress addr = client.getAddress();
+            SSLEngine engine = getSSLContext().createSSLEngine(client.getURI().getHost(), addr.getPort());
+            engine.setUseClientMode(true);
+            client.sslEngine = engine;
+            wrapped = new SSLSocketChannel2(channel, engine, tlsTaskExecutor, key);
+        }
+        client.getEngine().setChannel(wrapped);
+        client.startHandshake();
+    }
+
+    private void read(MultiplexedWebSocketClient client) throws IOException {
+        WebSocketImpl engine = client.getEngine();
+        ByteChannel channel = engine.getChannel();
+        ByteBuffer buf = readBuffer;
+        if (SocketChannelIOHelper.read(buf, engine, channel)) {
+            client.lastActivity = System.currentTimeMillis();
+            if (buf.hasRemaining()) engine.decode(buf);
+        }
+        // TLS may have buffered more application data than fit into our buffer.
+        if (channel instanceof WrappedByteChannel) {
+            WrappedByteChannel wch = (WrappedByteChannel) channel;
+            while (wch.isNeedRead() && channel.isOpen()) {
+                boolean more = SocketChannelIOHelper.readMore(buf, engine, wch);
+                if (buf.hasRemaining()) engine.decode(buf);
+                if (!more) break;
+            }
+        }
+        // Reading may have advanced a TLS handshake that blocked writing.
+        flush(client);
+    }
+
+    private void flush(MultiplexedWebSocketClient client) {
+        WebSocketImpl engine = client.getEngine();
+        SelectionKey key = engine.getSelectionKey();
+        if (engine.isFlushAndClose() && engine.outQueue.isEmpty()) {
+            // Nothing more to say.
+            engine.closeConnection();
+            if (client.socketChannel != null) closeQuietly(client.socketChannel);
+            return;
+        }
+        // Still connecting (or already gone); finishConnect() will start writing.
+        if (key == null || !key.isValid() || (key.interestOps() & SelectionKey.OP_CONNECT) != 0) return;
+        try {
+            ByteBuffer head = engine.outQueue.peek();
+            int before = (head == null) ? -1 : head.remaining();
+            boolean done = SocketChannelIOHelper.batch(engine, engine.getChannel());
+            if (done) {
+                key.interestOps(SelectionKey.OP_READ);
+            } else if (head != null && head == engine.outQueue.peek() && head.remaining() == before) {
+                // No progress (e.g. TLS handshake still running); wait for incoming data instead of spinning.
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+            if (engine.isFlushAndClose() && engine.outQueue.isEmpty()) engine.closeConnection();
+        } catch (IOException | CancelledKeyException exc) {
+            client.fail(exc);
+        }
+    }
+
+    private void checkIdle(Selector sel) {
+        long now = System.currentTimeMillis();
+        List<MultiplexedWebSocketClient> dead = new ArrayList<>();
+        for (SelectionKey key : sel.keys()) {
+            MultiplexedWebSocketClient client = (MultiplexedWebSocketClient) key.attachment();
+            if (now - client.lastActivity > idleTimeout) dead.add(client);
+        }
+        for (MultiplexedWebSocketClient client : dead) {
+            client.fail(new SocketTimeoutException("No data received for " + idleTimeout + " ms"));
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException exc) {
+            Log.w(TAG, "Failed closing socket", exc);
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+package io.euphoria.xkcd.app.impl.ui;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.euphoria.xkcd.app.LatencyTracer;
+import io.euphoria.xkcd.app.connection.ConnectionStatus;
+import io.euphoria.xkcd.app.data.Message;
+import io.euphoria.xkcd.app.data.SessionView;
+import io.euphoria.xkcd.app.impl.ui.data.MessageForest;
+import io.euphoria.xkcd.app.impl.ui.data.MessageTree;
+import io.euphoria.xkcd.app.impl.ui.data.UIMessage;
+import io.euphoria.xkcd.app.impl.ui.data.UserList;
+import io.euphoria.xkcd.app.ui.RoomUI;
+import io.euphoria.xkcd.app.ui.UIListener;
+import io.euphoria.xkcd.app.ui.event.UIEvent;
+
+/* A RoomUI that maintains the model of a room (its messages and users) without any views
+ *
+ * Rooms that are joined in the background use this directly, so that they stay up to date cheaply; RoomUIImpl adds the
+ * views of a visible room on top. The model can be handed over to another instance (see adopt()), so that a room that
+ * is switched to is shown from its prebuilt model at once instead of being downloaded again.
+ */
+public class HeadlessRoomUI implements RoomUI {
+
+    private final String roomName;
+    // Copy-on-write, so that dispatching events does not allocate.
+    private UIListener[] listeners = new UIListener[0];
+    private MessageForest messages;
+    private UserList users;
+    private SessionView identity;
+    private ConnectionStatus status;
+    // Placeholders of pending own messages currently in the model.
+    private final List<MessageTree> pending = new ArrayList<>();
+    private boolean adopted;
+
+    public HeadlessRoomUI(String roomName) {
+        this.roomName = roomName;
+        this.messages = new MessageForest();
+        this.users = new UserList();
+    }
+
+    @Override
+    public String getRoomName() {
+        return roomName;
+    }
+
+    /* The messages of the room */
+    public MessageForest getMessages() {
+        return messages;
+    }
+
+    /* The users present in the room */
+    public UserList getUsers() {
+        return users;
+    }
+
+    public SessionView getIdentity() {
+        return identity;
+    }
+
+    /* The latest connection status reported, or null if there was none yet */
+    public ConnectionStatus getConnectionStatus() {
+        return status;
+    }
+
+    /* Whether the model has been taken over from another instance (as opposed to starting out empty) */
+    public boolean isAdopted() {
+        return adopted;
+    }
+
+    /* Take over the model of the given instance, which should not be used any further */
+    public void adopt(HeadlessRoomUI other) {
+        messages = other.messages;
+        users = other.users;
+        identity = other.identity;
+        status = other.status;
+        pending.clear();
+        pending.addAll(other.pending);
+        adopted = true;
+    }
+
+    /* Replace the (empty) model with one restored from saved state */
+    public void restoreModel(MessageForest messages, UserList users) {
+        if (messages != null) this.messages = messages;
+        if (users != null) this.users = users;
+        pending.clear();
+    }
+
+    @Override
+    public void show() {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void setConnectionStatus(ConnectionStatus status) {
+        this.status = status;
+    }
+
+    @Override
+    public void setIdentity(SessionView identity) {
+        this.identity = identity;
+    }
+
+    @Override
+    public void showMessages(List<Message> messages) {
+        for (Message m : messages) {
+            addMessage(new UIMessage(m));
+        }
+    }
+
+    @Override
+    public void showPendingMessages(List<Message> messages) {
+        Set<String> ids = new HashSet<>();
+        for (Message m : messages) ids.add(m.getID());
+        // Drop the placeholders of messages that have been confirmed (or refused) in the meantime.
+        for (MessageTree mt : pending) {
+            if (ids.contains(mt.getID())) continue;
+            MessageTree cursor = this.messages.get(MessageTree.CURSOR_ID);
+            if (cursor != null && mt.getID().equals(cursor.getParent())) moveInputBar(mt.getParent());
+            this.messages.remove(mt, false);
+        }
+        pending.clear();
+        String agent = (identity == null) ? null : identity.getAgentID();
+        String nick = getOwnNick();
+        for (Message m : messages) {
+            pending.add(this.messages.add(new UIMessage(m, agent, nick)));
+        }
+    }
+
+    @Override
+    public void showNicks(List<SessionView> sessions) {
+        users.addAll(sessions);
+    }
+
+    @Override
+    public void removeNicks(List<SessionView> sessions) {
+        users.removeAll(sessions);
+    }
+
+    /**
+     * Adds an UIListener to the RoomUI.
+     * If the listener object is already registered,
+     * the method will not register it again.
+     *
+     * @param l Listener to add
+     */
+    @Override
+    public void addEventListener(@NonNull UIListener l) {
+        for (UIListener old : listeners) {
+            if (old == l) return;
+        }
+        UIListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+        newListeners[listeners.length] = l;
+        listeners = newListeners;
+    }
+
+    /**
+     * Removes an UIListener from the RoomUI.
+     * If the listener object is not registered,
+     * the method will change nothing.
+     *
+     * @param l Listener to remove
+     */
+    @Override
+    public void removeEventListener(@NonNull UIListener l) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] != l) continue;
+            UIListener[] newListeners = new UIListener[listeners.length - 1];
+            System.arraycopy(listeners, 0, newListeners, 0, i);
+            System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+            listeners = newListeners;
+            return;
+        }
+    }
+
+    public void submitEvent(UIEvent evt) {
+        for (UIListener l : listeners) {
+            evt.dispatchTo(l);
+        }
+    }
+
+    /* Insert (or replace) a single message in the model */
+    protected void addMessage(UIMessage msg) {
+        messages.add(msg);
+        if (LatencyTracer.isEnabled()) LatencyTracer.getInstance().stamp(msg.getID(), LatencyTracer.Stage.INSERT);
+    }
+
+    /* Move the input bar (if there is one) to be a reply to the given message (or a new thread if that is null) */
+    protected void moveInputBar(String parentID) {
+        if (MessageTree.isPendingID(parentID)) return;
+        MessageTree cursor = messages.get(MessageTree.CURSOR_ID);
+        if (cursor != null) messages.move(cursor, messages.get(parentID), true);
+    }
+
+    /* The nickname to attribute pending own messages to */
+    protected String getOwnNick() {
+        return (identity == null) ? "" : identity.getName();
+    }
+
+}
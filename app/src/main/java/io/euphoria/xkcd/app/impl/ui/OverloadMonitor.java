@@ -0,0 +1,130 @@
+package io.euphoria.xkcd.app.impl.ui;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/* Decides when live messages arrive faster than a message list can smoothly show them
+ *
+ * The ingest rate is an exponentially decaying average (in messages per second); while it is elevated, frame intervals
+ * are sampled through the Choreographer as well. Overload is entered when the rate is high, or when it is elevated
+ * and frames are running late; it is left only after both have calmed down for a while, so that bursts do not make
+ * the mode flap. Main thread only.
+ */
+public class OverloadMonitor {
+
+    public interface Listener {
+
+        /* Overload mode has been entered or left */
+        void onOverloadChanged(boolean overloaded);
+
+    }
+
+    // Time constant of the ingest rate average.
+    private static final double RATE_TAU_MS = 1000;
+    // Rates (in messages per second) above which overload is entered unconditionally, or if frames are late.
+    private static final double ENTER_RATE = 15;
+    private static final double ELEVATED_RATE = 5;
+    // Rate below which overload may be left.
+    private static final double EXIT_RATE = 3;
+    // Smoothed frame interval above which frames are considered late (about 40 fps).
+    private static final long LATE_FRAME_NS = 25000000;
+    // How long things must be calm before overload is left.
+    private static final long CALM_PERIOD_MS = 3000;
+
+    private final Listener listener;
+    private final Choreographer.FrameCallback frameCallback;
+    private double rate;
+    private long rateTime;
+    private long lastFrameNanos;
+    private long frameInterval;
+    private boolean sampling;
+    private boolean overloaded;
+    private long calmSince = -1;
+
+    public OverloadMonitor(Listener listener) {
+        this.listener = listener;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            frameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    onFrame(frameTimeNanos);
+                }
+            };
+        } else {
+            frameCallback = null;
+        }
+        rateTime = SystemClock.uptimeMillis();
+    }
+
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /* The current ingest rate in messages per second */
+    public double getRate() {
+        return decayedRate(SystemClock.uptimeMillis());
+    }
+
+    /* The given amount of live messages has just arrived */
+    public void onIngest(int count) {
+        if (count == 0) return;
+        long now = SystemClock.uptimeMillis();
+        rate = decayedRate(now) + count * 1000 / RATE_TAU_MS;
+        rateTime = now;
+        update(now);
+    }
+
+    /* Re-evaluate the mode without new messages (e.g. to notice that a flood has stopped) */
+    public void poll() {
+        update(SystemClock.uptimeMillis());
+    }
+
+    private double decayedRate(long now) {
+        return rate * Math.exp(-(now - rateTime) / RATE_TAU_MS);
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        sampling = false;
+        if (lastFrameNanos != 0) {
+            long interval = frameTimeNanos - lastFrameNanos;
+            frameInterval = (frameInterval == 0) ? interval : (7 * frameInterval + interval) / 8;
+        }
+        lastFrameNanos = frameTimeNanos;
+        update(SystemClock.uptimeMillis());
+    }
+
+    private void update(long now) {
+        double r = decayedRate(now);
+        boolean late = frameInterval > LATE_FRAME_NS;
+        if (!overloaded) {
+            if (r > ENTER_RATE || r > ELEVATED_RATE && late) setOverloaded(true);
+        } else if (r < EXIT_RATE && !late) {
+            if (calmSince == -1) {
+                calmSince = now;
+            } else if (now - calmSince >= CALM_PERIOD_MS) {
+                setOverloaded(false);
+            }
+        } else {
+            calmSince = -1;
+        }
+        // Frame intervals are only of interest while there is something going on.
+        if (r > ELEVATED_RATE || overloaded) {
+            if (!sampling && frameCallback != null) {
+                sampling = true;
+                Choreographer.getInstance().postFrameCallback(frameCallback);
+            }
+        } else if (!sampling) {
+            // Do not compare against a frame from long ago once sampling resumes.
+            lastFrameNanos = 0;
+            frameInterval = 0;
+        }
+    }
+
+    private void setOverloaded(boolean value) {
+        overloaded = value;
+        calmSince = -1;
+        listener.onOverloadChanged(value);
+    }
+
+}
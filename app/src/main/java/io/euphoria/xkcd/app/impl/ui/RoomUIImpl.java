@@ -1,14 +1,15 @@
 package io.euphoria.xkcd.app.impl.ui;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.ColorRes;
-import android.support.annotation.NonNull;
 import android.support.annotation.StringRes;
 import android.util.Log;
+import android.view.View;
 import android.widget.TextView;
 
-import java.util.LinkedHashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 import io.euphoria.xkcd.app.R;
 import io.euphoria.xkcd.app.connection.ConnectionStatus;
@@ -18,32 +19,55 @@ import io.euphoria.xkcd.app.impl.ui.data.UIMessage;
 import io.euphoria.xkcd.app.impl.ui.views.InputBarView;
 import io.euphoria.xkcd.app.impl.ui.views.MessageListAdapter;
 import io.euphoria.xkcd.app.impl.ui.views.UserListAdapter;
-import io.euphoria.xkcd.app.ui.RoomUI;
-import io.euphoria.xkcd.app.ui.UIListener;
-import io.euphoria.xkcd.app.ui.event.LogRequestEvent;
-import io.euphoria.xkcd.app.ui.event.MessageSendEvent;
-import io.euphoria.xkcd.app.ui.event.NewNickEvent;
-import io.euphoria.xkcd.app.ui.event.RoomSwitchEvent;
-import io.euphoria.xkcd.app.ui.event.UICloseEvent;
-import io.euphoria.xkcd.app.ui.event.UIEvent;
-
-public class RoomUIImpl implements RoomUI {
-
-    private final String roomName;
-    private final Set<UIListener> listeners = new LinkedHashSet<>();
-    private SessionView identity;
+
+/* A RoomUI that shows its model through the views it is linked to
+ *
+ * While unlinked, it behaves like a HeadlessRoomUI.
+ */
+public class RoomUIImpl extends HeadlessRoomUI {
+
+    // While overloaded, held-back live messages are shown in bulk at most this often.
+    private static final long RELEASE_INTERVAL_MS = 1000;
+
+    private final Handler handler;
+    private final OverloadMonitor overload;
+    // Live messages not shown yet because of overload, oldest first. These are kept out of the model (instead of being
+    // inserted with their adapter notifications deferred) because the adapter reads the model's display list
+    // directly, and RecyclerView requires every change to that to be announced before its next layout pass.
+    private final List<UIMessage> held = new ArrayList<>();
+    private final Runnable releaser = new Runnable() {
+        @Override
+        public void run() {
+            releaseScheduled = false;
+            overload.poll();
+            releaseHeldMessages();
+            if (overload.isOverloaded()) scheduleRelease();
+        }
+    };
+    private boolean releaseScheduled;
+    // The newest message shown (or held) so far; anything newer is live.
+    private String newestID;
     private TextView statusDisplay;
     private MessageListAdapter messagesAdapter;
     private UserListAdapter usersAdapter;
     private InputBarView inputBar;
-
-    public RoomUIImpl(String roomName) {
-        this.roomName = roomName;
-    }
-
-    @Override
-    public String getRoomName() {
-        return roomName;
+    private TextView heldIndicator;
+
+    public RoomUIImpl(final String roomName) {
+        super(roomName);
+        this.handler = new Handler(Looper.getMainLooper());
+        this.overload = new OverloadMonitor(new OverloadMonitor.Listener() {
+            @Override
+            public void onOverloadChanged(boolean overloaded) {
+                if (overloaded) {
+                    Log.i("RoomUIImpl", "Entering overload mode in &" + roomName);
+                    scheduleRelease();
+                } else {
+                    Log.i("RoomUIImpl", "Leaving overload mode in &" + roomName);
+                    releaseHeldMessages();
+                }
+            }
+        });
     }
 
     @Override
@@ -58,6 +82,13 @@ public class RoomUIImpl implements RoomUI {
 
     @Override
     public void setConnectionStatus(ConnectionStatus status) {
+        super.setConnectionStatus(status);
+        showConnectionStatus();
+    }
+
+    private void showConnectionStatus() {
+        ConnectionStatus status = getConnectionStatus();
+        if (statusDisplay == null || status == null) return;
         @ColorRes int color = R.color.status_unknown;
         @StringRes int content = R.string.status_unknown;
         switch (status) {
@@ -78,30 +109,78 @@ public class RoomUIImpl implements RoomUI {
                 content = R.string.status_connected;
                 break;
         }
-        // This one is called after unlinking; handle that case gracefully.
-        if (statusDisplay == null) {
-            Log.e("RoomUIImpl", "Lost connection status update: " + status);
-            return;
-        }
         statusDisplay.setTextColor(UIUtils.getColor(statusDisplay.getContext(), color));
         statusDisplay.setText(content);
     }
 
-    @Override
-    public void setIdentity(SessionView identity) {
-        this.identity = identity;
-    }
-
+    /* Display the given messages
+     *
+     * While overloaded (see OverloadMonitor), live messages (i.e. those newer than everything shown so far) by others
+     * are held back and shown in bulk every RELEASE_INTERVAL_MS (or when the user asks for them through the held
+     * message indicator); logs are never held back. While unlinked, everything goes straight into the model.
+     */
     @Override
     public void showMessages(List<Message> messages) {
+        if (messagesAdapter == null) {
+            super.showMessages(messages);
+            return;
+        }
+        SessionView identity = getIdentity();
+        String ownAgent = (identity == null) ? null : identity.getAgentID();
+        int live = 0;
         for (Message m : messages) {
-            messagesAdapter.add(new UIMessage(m));
+            UIMessage um = new UIMessage(m);
+            if (newestID == null || um.getID().compareTo(newestID) <= 0) {
+                show(um);
+                continue;
+            }
+            live++;
+            if (overload.isOverloaded() && !um.getSenderAgent().equals(ownAgent)) {
+                held.add(um);
+                newestID = um.getID();
+            } else {
+                show(um);
+            }
         }
+        overload.onIngest(live);
+        updateHeldIndicator();
+    }
+
+    /* Show all held-back live messages right away */
+    public void releaseHeldMessages() {
+        if (messagesAdapter == null || held.isEmpty()) return;
+        for (UIMessage um : held) show(um);
+        held.clear();
+        updateHeldIndicator();
+    }
+
+    private void show(UIMessage um) {
+        addMessage(um);
+        if (newestID == null || um.getID().compareTo(newestID) > 0) newestID = um.getID();
+    }
+
+    private void scheduleRelease() {
+        if (releaseScheduled) return;
+        releaseScheduled = true;
+        handler.postDelayed(releaser, RELEASE_INTERVAL_MS);
+    }
+
+    private void updateHeldIndicator() {
+        if (heldIndicator == null) return;
+        if (held.isEmpty()) {
+            heldIndicator.setVisibility(View.GONE);
+            return;
+        }
+        heldIndicator.setText(heldIndicator.getResources().getQuantityString(R.plurals.new_messages, held.size(),
+                held.size()));
+        heldIndicator.setVisibility(View.VISIBLE);
     }
 
     @Override
     public void showNicks(List<SessionView> sessions) {
-        usersAdapter.getData().addAll(sessions);
+        super.showNicks(sessions);
+        SessionView identity = getIdentity();
+        if (inputBar == null || identity == null) return;
         for (SessionView s : sessions) {
             if (s.getSessionID().equals(identity.getSessionID())) {
                 inputBar.setAllNicks(s.getName());
@@ -110,67 +189,52 @@ public class RoomUIImpl implements RoomUI {
     }
 
     @Override
-    public void removeNicks(List<SessionView> sessions) {
-        usersAdapter.getData().removeAll(sessions);
-    }
-
-    /**
-     * Adds an UIListener to the RoomUIImpl.
-     * If the listener object is already registered,
-     * the method will not register it again.
-     *
-     * @param l Listener to add
-     */
-    @Override
-    public void addEventListener(@NonNull UIListener l) {
-        listeners.add(l);
+    protected void moveInputBar(String parentID) {
+        if (messagesAdapter == null) {
+            super.moveInputBar(parentID);
+        } else {
+            messagesAdapter.moveInputBar(parentID);
+        }
     }
 
-    /**
-     * Removes an UIListener from the RoomUIImpl.
-     * If the listener object is not registered,
-     * the method will change nothing.
-     *
-     * @param l Listener to remove
-     */
     @Override
-    public void removeEventListener(@NonNull UIListener l) {
-        listeners.remove(l);
+    protected String getOwnNick() {
+        // The input bar does not know the nick before the first identity arrives.
+        String nick = (inputBar == null) ? null : inputBar.getConfirmedNick();
+        return (nick == null) ? super.getOwnNick() : nick;
     }
 
     private static void logNYI(String detail) {
         Log.e("RoomUIImpl", detail + " is not yet implemented...");
     }
 
-    public void link(TextView status, MessageListAdapter messages, UserListAdapter users, InputBarView input) {
+    public void link(TextView status, MessageListAdapter messages, UserListAdapter users, InputBarView input,
+                     TextView held) {
         statusDisplay = status;
         messagesAdapter = messages;
         usersAdapter = users;
         inputBar = input;
+        heldIndicator = held;
+        // The new adapter's data might have been restored from an older state.
+        newestID = null;
+        updateHeldIndicator();
+        showConnectionStatus();
     }
 
-    public void unlink(TextView status, MessageListAdapter messages, UserListAdapter users, InputBarView input) {
+    public void unlink(TextView status, MessageListAdapter messages, UserListAdapter users, InputBarView input,
+                       TextView held) {
         if (statusDisplay == status) statusDisplay = null;
         if (messagesAdapter == messages) messagesAdapter = null;
         if (usersAdapter == users) usersAdapter = null;
         if (inputBar == input) inputBar = null;
-    }
-
-    public void submitEvent(UIEvent evt) {
-        for (UIListener l : listeners) {
-            if (evt instanceof NewNickEvent) {
-                l.onNewNick((NewNickEvent) evt);
-            } else if (evt instanceof MessageSendEvent) {
-                l.onMessageSend((MessageSendEvent) evt);
-            } else if (evt instanceof LogRequestEvent) {
-                l.onLogRequest((LogRequestEvent) evt);
-            } else if (evt instanceof RoomSwitchEvent) {
-                l.onRoomSwitch((RoomSwitchEvent) evt);
-            } else if (evt instanceof UICloseEvent) {
-                l.onClose((UICloseEvent) evt);
-            } else {
-                Log.e("RoomUIImpl", "Unknown UI event " + evt + "; dropping.");
-            }
+        if (heldIndicator == held) heldIndicator = null;
+        // Detach the views from the model, which might live on (see HeadlessRoomUI.adopt()).
+        if (getMessages().getListener() == messages) getMessages().setListener(null);
+        if (getUsers().getListener() == users) getUsers().setDisplayListener(null);
+        // Without views, held-back messages go into the model (which is what is handed over or saved).
+        if (messagesAdapter == null) {
+            for (UIMessage um : this.held) addMessage(um);
+            this.held.clear();
         }
     }
 
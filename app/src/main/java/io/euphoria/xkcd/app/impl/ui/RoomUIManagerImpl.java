@@ -9,6 +9,7 @@ import java.util.Set;
 import io.euphoria.xkcd.app.ui.RoomUI;
 import io.euphoria.xkcd.app.ui.RoomUIFactory;
 import io.euphoria.xkcd.app.ui.RoomUIManager;
+import io.euphoria.xkcd.app.ui.UIListener;
 import io.euphoria.xkcd.app.ui.UIManagerListener;
 import io.euphoria.xkcd.app.ui.event.RoomSwitchEvent;
 
@@ -23,31 +24,46 @@ public class RoomUIManagerImpl implements RoomUIManager {
 
         @Override
         public RoomUI createRoomUI(String roomName) {
-            return new RoomUIImpl(roomName);
+            return new HeadlessRoomUI(roomName);
         }
 
     }
 
     private final Set<UIManagerListener> listeners = new HashSet<>();
     private final HashMap<String, RoomUI> roomUIs = new HashMap<>();
+    // The factories that created the entries of roomUIs.
+    private final HashMap<String, RoomUIFactory> creators = new HashMap<>();
     private RoomUIFactory factory = DefaultRoomUIFactory.INSTANCE;
 
+    /* Set the factory for new RoomUI-s
+     *
+     * Existing RoomUI-s are kept; when one made by another factory is requested next, it is replaced by one made by
+     * the current factory, which takes over the model of the old one (if both are HeadlessRoomUI-s). Thus, rooms stay
+     * up to date while no Activity is showing them, and are shown right away once one does again.
+     */
     @Override
     public void setRoomUIFactory(RoomUIFactory factory) {
         if (factory == null) factory = DefaultRoomUIFactory.INSTANCE;
-        if (factory != this.factory) roomUIs.clear();
         this.factory = factory;
     }
 
     @Override
     public RoomUI getRoomUI(@NonNull String roomName) {
-        if (roomUIs.containsKey(roomName)) {
-            return roomUIs.get(roomName);
-        } else {
-            RoomUI ret = factory.createRoomUI(roomName);
-            roomUIs.put(roomName, ret);
-            return ret;
+        RoomUI old = roomUIs.get(roomName);
+        if (old != null && creators.get(roomName) == factory) return old;
+        RoomUI ret = factory.createRoomUI(roomName);
+        if (old instanceof HeadlessRoomUI && ret instanceof HeadlessRoomUI) {
+            ((HeadlessRoomUI) ret).adopt((HeadlessRoomUI) old);
         }
+        roomUIs.put(roomName, ret);
+        creators.put(roomName, factory);
+        return ret;
+    }
+
+    @Override
+    public void removeRoomUI(@NonNull String roomName) {
+        roomUIs.remove(roomName);
+        creators.remove(roomName);
     }
 
     /**
@@ -86,6 +102,11 @@ public class RoomUIManagerImpl implements RoomUIManager {
                 public RoomUI getRoomUI() {
                     return RoomUIManagerImpl.this.getRoomUI(roomName);
                 }
+
+                @Override
+                public void dispatchTo(UIListener l) {
+                    l.onRoomSwitch(this);
+                }
             });
         }
     }
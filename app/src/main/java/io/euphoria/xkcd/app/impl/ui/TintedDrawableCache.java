@@ -0,0 +1,98 @@
+package io.euphoria.xkcd.app.impl.ui;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.GradientDrawable;
+import android.support.annotation.ColorInt;
+import android.support.annotation.DrawableRes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Shares the states of colored (GradientDrawable) backgrounds among all the views using the same resource and color
+ *
+ * Loading, mutating and coloring a drawable for every nickname and emote that is shown creates a copy of its state each
+ * time; instead, the colored state is prepared once per (resource, color) pair, and every view gets a light-weight
+ * Drawable sharing it (which must, hence, not be mutated further). A view whose background already shares the state
+ * does not need a new one at all.
+ *
+ * The least recently used states are dropped beyond a fixed amount; all of them are dropped when the system asks for
+ * memory to be freed, or when the configuration changes (since resources might resolve differently afterwards).
+ * Thread-safe.
+ */
+public class TintedDrawableCache {
+
+    // Amount of states to keep; there are only a handful of backgrounds, but plenty of nickname colors.
+    private static final int MAX_ENTRIES = 128;
+
+    private static final TintedDrawableCache INSTANCE = new TintedDrawableCache();
+
+    public static TintedDrawableCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final Map<Long, Drawable.ConstantState> states;
+    private boolean registered;
+
+    private TintedDrawableCache() {
+        states = new LinkedHashMap<Long, Drawable.ConstantState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Drawable.ConstantState> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /* The shared state of the given drawable resource with the given color applied, or null if there is none */
+    public synchronized Drawable.ConstantState getState(Context ctx, @DrawableRes int drawable, @ColorInt int color) {
+        if (!registered) register(ctx);
+        Long key = ((long) drawable << 32) | (color & 0xFFFFFFFFL);
+        Drawable.ConstantState ret = states.get(key);
+        if (ret == null) {
+            GradientDrawable d = (GradientDrawable) UIUtils.getDrawable(ctx, drawable);
+            if (d == null) return null;
+            d.mutate();
+            d.setColor(color);
+            ret = d.getConstantState();
+            if (ret == null) return null;
+            states.put(key, ret);
+        }
+        return ret;
+    }
+
+    /* A new Drawable sharing the state of the given drawable resource with the given color applied */
+    public Drawable get(Context ctx, @DrawableRes int drawable, @ColorInt int color) {
+        Drawable.ConstantState state = getState(ctx, drawable, color);
+        return (state == null) ? null : state.newDrawable(ctx.getResources());
+    }
+
+    /* Drop all states */
+    public synchronized void clear() {
+        states.clear();
+    }
+
+    private void register(Context ctx) {
+        Context app = ctx.getApplicationContext();
+        if (app == null) return;
+        app.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_RUNNING_LOW) clear();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                clear();
+            }
+
+            @Override
+            public void onLowMemory() {
+                clear();
+            }
+        });
+        registered = true;
+    }
+
+}
@@ -2,7 +2,6 @@ package io.euphoria.xkcd.app.impl.ui;
 
 import android.content.Context;
 import android.graphics.drawable.Drawable;
-import android.graphics.drawable.GradientDrawable;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
 import android.support.annotation.ColorInt;
@@ -18,7 +17,7 @@ import android.view.View;
 import android.widget.TextView;
 
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
@@ -39,15 +38,37 @@ public class UIUtils {
 
     private static final Pattern WHITESPACE_TRIMMING_RE = Pattern.compile("^\\p{Z}+|\\p{Z}+$");
 
-    // TODO check against actual list of valid emoji
-    private static final Pattern EMOJI_RE = Pattern.compile(":[a-zA-Z!?\\-]+?:");
-
     // Emote message testing
     public static final Pattern EMOTE_RE = Pattern.compile("^/me");
     public static final int MAX_EMOTE_LENGTH = 240;
 
-    // Hue hash cache
-    private static final Map<String, Double> HUE_CACHE = new HashMap<>();
+    // Nickname color cache, keyed by raw nickname
+    private static final int MAX_NICK_COLORS = 512;
+    private static final Map<String, NickColors> NICK_COLOR_CACHE = new LinkedHashMap<String, NickColors>(16, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, NickColors> eldest) {
+            return size() > MAX_NICK_COLORS;
+        }
+    };
+
+    /** The ready-to-use colors belonging to a nickname */
+    private static final class NickColors {
+
+        @ColorInt
+        private final int sender;
+        @ColorInt
+        private final int emote;
+        @ColorInt
+        private final int mention;
+
+        private NickColors(double hue) {
+            sender = hslToRgbInt(hue, COLOR_SENDER_SATURATION, COLOR_SENDER_LIGHTNESS);
+            emote = hslToRgbInt(hue, COLOR_EMOTE_SATURATION, COLOR_EMOTE_LIGHTNESS);
+            mention = hslToRgbInt(hue, COLOR_AT_SATURATION, COLOR_AT_LIGHTNESS);
+        }
+
+    }
 
     /**
      * Convenience function for mapping density-independent pixels to effective pixels.
@@ -84,7 +105,7 @@ public class UIUtils {
      * @param drawable The resource ID of the Drawable to obtain.
      * @return The Drawable.
      */
-    private static Drawable getDrawable(Context ctx, @DrawableRes int drawable) {
+    static Drawable getDrawable(Context ctx, @DrawableRes int drawable) {
         if (VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP) {
             return ctx.getDrawable(drawable);
         } else {
@@ -94,18 +115,17 @@ public class UIUtils {
 
     /**
      * Obtain an instance of the drawable resource with the given color applied
+     * <p>
+     * The instance shares its state with all others of the same resource and color (see TintedDrawableCache), and
+     * must not be modified.
+     *
      * @param ctx Context
      * @param drawable Resource ID of the drawable to color
      * @param color Color to apply
-     * @return A mutable Drawable with the given color applied
+     * @return A Drawable with the given color applied
      */
     public static Drawable colorDrawable(Context ctx, @DrawableRes int drawable, @ColorInt int color) {
-        GradientDrawable ret = (GradientDrawable) getDrawable(ctx, drawable);
-        if (ret != null) {
-            ret.mutate();
-            ret.setColor(color);
-        }
-        return ret;
+        return TintedDrawableCache.getInstance().get(ctx, drawable, color);
     }
 
     /**
@@ -145,7 +165,12 @@ public class UIUtils {
      * @return The Drawable that was installed as the background
      */
     public static Drawable setColoredBackground(View v, @DrawableRes int drawable, @ColorInt int color) {
-        Drawable ret = colorDrawable(v.getContext(), drawable, color);
+        Context ctx = v.getContext();
+        Drawable.ConstantState state = TintedDrawableCache.getInstance().getState(ctx, drawable, color);
+        Drawable current = v.getBackground();
+        // Views being re-bound frequently already have the right background.
+        if (state != null && current != null && current.getConstantState() == state) return current;
+        Drawable ret = (state == null) ? null : state.newDrawable(ctx.getResources());
         setViewBackground(v, ret);
         return ret;
     }
@@ -194,9 +219,110 @@ public class UIUtils {
 
     private static final double greenieOffset = 148.0 - hueHash("greenie", 0.0);
 
-    /** Normalize a string for hue hash processing */
+    /**
+     * Normalize a string for hue hash processing
+     * <p>
+     * This drops emoji (like <code>:smile:</code>), drops everything but ASCII word characters and dashes, and
+     * lowercases the rest, in a single pass; the string itself is returned if it is normalized already.
+     */
     private static String normalize(String text) {
-        return EMOJI_RE.matcher(text).replaceAll("").replaceAll("[^\\w_\\-]", "").toLowerCase();
+        int length = text.length();
+        char[] buf = null;
+        int size = 0;
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == ':') {
+                // TODO check against actual list of valid emoji
+                int end = i + 1;
+                while (end < length && isEmojiNameChar(text.charAt(end))) end++;
+                if (end < length && end > i + 1 && text.charAt(end) == ':') {
+                    if (buf == null) buf = copyPrefix(text, i);
+                    i = end + 1;
+                    continue;
+                }
+            }
+            i++;
+            if (!isWordChar(c) && c != '-') {
+                if (buf == null) buf = copyPrefix(text, i - 1);
+                continue;
+            }
+            if (c >= 'A' && c <= 'Z') {
+                if (buf == null) buf = copyPrefix(text, i - 1);
+                c += 'a' - 'A';
+            }
+            if (buf != null) buf[size] = c;
+            size++;
+        }
+        return (buf == null) ? text : new String(buf, 0, size);
+    }
+
+    private static char[] copyPrefix(String text, int length) {
+        char[] ret = new char[text.length()];
+        text.getChars(0, length, ret, 0);
+        return ret;
+    }
+
+    /**
+     * Normalize a nickname for comparison against @mentions.
+     *
+     * @param nick The nickname
+     * @return The nickname, normalized as for hue hashing
+     */
+    @NonNull
+    public static String normalizeNick(@NonNull String nick) {
+        return normalize(nick);
+    }
+
+    /**
+     * Test whether the given message content @mentions the given (normalized) nickname.
+     *
+     * This is a single pass over the content that normalizes every mention on the fly exactly like normalize() does
+     * (dropping emoji, dropping everything but word characters and dashes, and lowercasing), without allocating.
+     *
+     * @param content The message content
+     * @param normalizedNick A nickname as returned by normalizeNick()
+     * @return Whether any mention in the content matches the nickname
+     */
+    public static boolean mentions(@NonNull String content, @NonNull String normalizedNick) {
+        if (normalizedNick.isEmpty()) return false;
+        int length = content.length();
+        int i = 0;
+        while (i < length) {
+            char c = content.charAt(i++);
+            // A mention is an @ not preceded by a word character, and extends up to the next whitespace.
+            if (c != '@' || i >= 2 && isWordChar(content.charAt(i - 2))) continue;
+            int matched = 0;
+            boolean ok = true;
+            while (i < length && !Character.isWhitespace(content.charAt(i))) {
+                c = content.charAt(i);
+                if (c == ':') {
+                    int end = i + 1;
+                    while (end < length && isEmojiNameChar(content.charAt(end))) end++;
+                    if (end < length && end > i + 1 && content.charAt(end) == ':') {
+                        i = end + 1;
+                        continue;
+                    }
+                }
+                i++;
+                if (!isWordChar(c) && c != '-') continue;
+                if (matched < normalizedNick.length() && Character.toLowerCase(c) == normalizedNick.charAt(matched)) {
+                    matched++;
+                } else {
+                    ok = false;
+                }
+            }
+            if (ok && matched == normalizedNick.length()) return true;
+        }
+        return false;
+    }
+
+    private static boolean isWordChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+    }
+
+    private static boolean isEmojiNameChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '!' || c == '?' || c == '-';
     }
 
     /**
@@ -215,20 +341,36 @@ public class UIUtils {
     /**
      * Obtain the hue associated with the given nickname
      * Use the *Color methods to compose ready-to-use colors.
-     * @param text The nickname whose hue to obtain
+     * @param text The nickname whose hue to obtain (null is treated like an empty one)
      * @return The hue corresponding to <code>text</code>
      */
     public static double hue(String text) {
+        if (text == null) text = "";
         String normalized = normalize(text);
 
         if (normalized.isEmpty()) {
             normalized = text;
         }
 
-        Double ret = HUE_CACHE.get(normalized);
+        return hueHash(normalized, greenieOffset);
+    }
+
+    /**
+     * Obtain the colors associated with the given nickname, from the cache if possible
+     * This is safe to call from any thread.
+     */
+    private static NickColors nickColors(String name) {
+        if (name == null) name = "";
+        NickColors ret;
+        synchronized (NICK_COLOR_CACHE) {
+            ret = NICK_COLOR_CACHE.get(name);
+        }
         if (ret == null) {
-            ret = hueHash(normalized, greenieOffset);
-            HUE_CACHE.put(normalized, ret);
+            // Computing the colors twice in a race is harmless.
+            ret = new NickColors(hue(name));
+            synchronized (NICK_COLOR_CACHE) {
+                NICK_COLOR_CACHE.put(name, ret);
+            }
         }
         return ret;
     }
@@ -306,7 +448,7 @@ public class UIUtils {
      */
     @ColorInt
     public static int nickColor(String name) {
-        return hslToRgbInt(hue(name), COLOR_SENDER_SATURATION, COLOR_SENDER_LIGHTNESS);
+        return nickColors(name).sender;
     }
 
     /**
@@ -317,7 +459,7 @@ public class UIUtils {
      */
     @ColorInt
     public static int emoteColor(String name) {
-        return hslToRgbInt(hue(name), COLOR_EMOTE_SATURATION, COLOR_EMOTE_LIGHTNESS);
+        return nickColors(name).emote;
     }
 
     /**
@@ -327,7 +469,7 @@ public class UIUtils {
      */
     @ColorInt
     public static int mentionColor(String name) {
-        return hslToRgbInt(hue(name), COLOR_AT_SATURATION, COLOR_AT_LIGHTNESS);
+        return nickColors(name).mention;
     }
 
     /**
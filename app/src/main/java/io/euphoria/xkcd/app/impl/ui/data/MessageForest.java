@@ -116,7 +116,7 @@ public class MessageForest implements Parcelable {
     private void writeGroupToParcel(Parcel out, String parent, List<MessageTree> mts) {
         out.writeString(parent);
         for (MessageTree mt : mts) {
-            mt.writeToParcel(out);
+            if (!mt.isPending()) mt.writeToParcel(out);
         }
         out.writeByte((byte) 0);
     }
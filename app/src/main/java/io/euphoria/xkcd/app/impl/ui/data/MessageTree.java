@@ -8,6 +8,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
+import io.euphoria.xkcd.app.data.Message;
 import io.euphoria.xkcd.app.impl.ui.UIUtils;
 
 /**
@@ -18,9 +19,16 @@ public class MessageTree implements Comparable<MessageTree> {
 
     public static long idStringToLong(String id) {
         if (id.equals(CURSOR_ID)) return -1;
+        // Pending messages map to negative values other than the cursor's.
+        if (isPendingID(id)) return -2 - Long.parseLong(id.substring(Message.PENDING_ID_PREFIX.length()), 36);
         return Long.parseLong(id, 36);
     }
 
+    /** Whether the given ID is that of a placeholder for an own message not confirmed by the server yet. */
+    public static boolean isPendingID(String id) {
+        return id != null && id.startsWith(Message.PENDING_ID_PREFIX);
+    }
+
     public static String idLongToString(long id) {
         if (id == -1) return CURSOR_ID;
         return Long.toString(id, 36);
@@ -99,6 +107,11 @@ public class MessageTree implements Comparable<MessageTree> {
         return id.compareTo(o.id);
     }
 
+    /** Whether this is a placeholder for an own message not confirmed by the server yet. */
+    public boolean isPending() {
+        return isPendingID(id);
+    }
+
     /** The ID of this MessageTree (CURSOR_ID for the input bar). */
     public String getID() {
         return id;
@@ -131,6 +144,11 @@ public class MessageTree implements Comparable<MessageTree> {
         return Collections.unmodifiableList(replies);
     }
 
+    /** Whether this has any replies (including the input bar); unlike getReplies(), this allocates nothing. */
+    public boolean hasReplies() {
+        return !replies.isEmpty();
+    }
+
     /** The message wrapped by this; null for the input bar. */
     public UIMessage getMessage() {
         return message;
@@ -209,7 +227,9 @@ public class MessageTree implements Comparable<MessageTree> {
     public int countVisibleUserReplies(boolean override) {
         if (!override && collapsed) return 0;
         int ret = 0;
-        for (MessageTree mt : replies) {
+        // Indexed rather than iterated, as this is run while binding views.
+        for (int i = 0, n = replies.size(); i < n; i++) {
+            MessageTree mt = replies.get(i);
             if (mt.getID().equals(CURSOR_ID)) continue;
             ret += 1 + mt.countVisibleUserReplies(false);
         }
@@ -251,7 +271,10 @@ public class MessageTree implements Comparable<MessageTree> {
             message.writeToParcel(out);
         }
         if ((flags & PF_HAS_REPLIES) != 0) {
-            for (MessageTree mt : replies) mt.writeToParcel(out);
+            for (MessageTree mt : replies) {
+                // Placeholders are re-created from the connection's outbox.
+                if (!mt.isPending()) mt.writeToParcel(out);
+            }
             out.writeByte((byte) 0);
         }
     }
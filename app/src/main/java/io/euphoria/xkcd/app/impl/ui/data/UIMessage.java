@@ -26,17 +26,25 @@ public class UIMessage {
     private final String senderName;
     private final String content;
     private final boolean truncated;
+    // Derived from content on first use.
+    private boolean displayComputed;
+    private boolean emote;
+    private String displayContent;
 
-    public UIMessage(Message source) {
+    public UIMessage(Message source, String senderAgent, String senderName) {
         this.id = source.getID();
         this.parent = source.getParent();
         this.timestamp = source.getTimestamp();
-        this.senderAgent = source.getSender().getAgentID();
-        this.senderName = source.getSender().getName();
+        this.senderAgent = senderAgent;
+        this.senderName = senderName;
         this.content = source.getContent();
         this.truncated = source.isTruncated();
     }
 
+    public UIMessage(Message source) {
+        this(source, source.getSender().getAgentID(), source.getSender().getName());
+    }
+
     protected UIMessage(Parcel in, String id, String parent, boolean truncated) {
         this.id = id;
         this.parent = parent;
@@ -102,6 +110,25 @@ public class UIMessage {
         return truncated;
     }
 
+    /** Whether this is an emote (i.e. a "/me" message). */
+    public boolean isEmote() {
+        computeDisplay();
+        return emote;
+    }
+
+    /** The content as displayed, i.e. without any emote marker and surrounding whitespace. */
+    public String getDisplayContent() {
+        computeDisplay();
+        return displayContent;
+    }
+
+    private void computeDisplay() {
+        if (displayComputed) return;
+        emote = UIUtils.isEmote(content);
+        displayContent = UIUtils.trimUnicodeWhitespace(emote ? content.substring(3) : content);
+        displayComputed = true;
+    }
+
     protected void writeToParcel(Parcel out) {
         out.writeLong(timestamp);
         out.writeString(senderAgent);
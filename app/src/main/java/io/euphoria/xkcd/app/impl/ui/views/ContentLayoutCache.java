@@ -0,0 +1,128 @@
+package io.euphoria.xkcd.app.impl.ui.views;
+
+import android.os.Process;
+import android.support.v4.text.PrecomputedTextCompat;
+import android.support.v4.widget.TextViewCompat;
+import android.util.Log;
+import android.widget.TextView;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import io.euphoria.xkcd.app.impl.ui.data.MessageTree;
+import io.euphoria.xkcd.app.impl.ui.data.UIMessage;
+
+/* Measures and line-breaks the contents of messages on a background thread, ahead of them being shown
+ *
+ * The results are PrecomputedTextCompat-s (real PrecomputedText-s from Android P on), keyed by message ID; they do not
+ * depend on the available width, which only enters into the (cheap) final line breaking. MessageListAdapter asks for
+ * the messages around each one it binds to be prepared, so that those scrolled into view next usually find their
+ * text ready, and MessageView hands the prepared text to its content view, which then skips measuring on the UI thread.
+ *
+ * Main thread only (apart from the computation itself).
+ */
+public class ContentLayoutCache {
+
+    private static class Entry {
+
+        private final UIMessage message;
+        private final CharSequence text;
+        private final PrecomputedTextCompat.Params params;
+        private volatile PrecomputedTextCompat result;
+        // Set once the entry has left the cache, so that a still-queued computation for it can be skipped.
+        private volatile boolean stale;
+
+        private Entry(UIMessage message, CharSequence text, PrecomputedTextCompat.Params params) {
+            this.message = message;
+            this.text = text;
+            this.params = params;
+        }
+
+    }
+
+    // Amount of prepared texts to keep.
+    private static final int MAX_ENTRIES = 256;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread ret = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "EuphoriaTextLayout");
+            ret.setDaemon(true);
+            return ret;
+        }
+    });
+
+    private final Map<String, Entry> entries;
+    // Taken from the first content view shown; all of them are styled alike.
+    private PrecomputedTextCompat.Params params;
+
+    public ContentLayoutCache() {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= MAX_ENTRIES) return false;
+                eldest.getValue().stale = true;
+                return true;
+            }
+        };
+    }
+
+    /* Start preparing the content of the given message, unless that is done already */
+    public void prefetch(MessageTree mt) {
+        if (params == null || mt == null) return;
+        UIMessage msg = mt.getMessage();
+        if (msg == null) return;
+        Entry ent = entries.get(mt.getID());
+        if (ent != null) {
+            if (ent.message == msg) return;
+            ent.stale = true;
+        }
+        final Entry newEnt = new Entry(msg, msg.getDisplayContent(), params);
+        entries.put(mt.getID(), newEnt);
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Scrolling quickly queues up many messages that have been evicted again by the time they come up.
+                if (newEnt.stale) return;
+                newEnt.result = PrecomputedTextCompat.create(newEnt.text, newEnt.params);
+            }
+        });
+    }
+
+    /* Show the content of the given message in the given view, using the prepared text if there is one
+     *
+     * @param text The content to show, as derived from msg.
+     */
+    public void apply(TextView view, UIMessage msg, CharSequence text) {
+        if (params == null) params = TextViewCompat.getTextMetricsParams(view);
+        Entry ent = entries.get(msg.getID());
+        PrecomputedTextCompat result = (ent == null || ent.message != msg) ? null : ent.result;
+        if (result != null) {
+            try {
+                TextViewCompat.setPrecomputedText(view, result);
+                return;
+            } catch (IllegalArgumentException exc) {
+                // The view's style has changed; start over with its current parameters.
+                Log.w("ContentLayoutCache", "Prepared text does not match its view", exc);
+                clear();
+                params = TextViewCompat.getTextMetricsParams(view);
+            }
+        }
+        view.setText(text);
+    }
+
+    private void clear() {
+        for (Entry ent : entries.values()) ent.stale = true;
+        entries.clear();
+    }
+
+}
@@ -0,0 +1,115 @@
+package io.euphoria.xkcd.app.impl.ui.views;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.support.annotation.NonNull;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+
+import java.util.Arrays;
+
+import io.euphoria.xkcd.app.R;
+import io.euphoria.xkcd.app.impl.ui.UIUtils;
+import io.euphoria.xkcd.app.impl.ui.data.MessageTree;
+
+/* Draws the vertical lines connecting the replies of each message in a MessageListView
+ *
+ * The line of a message at indent k runs along all the (consecutive) rows below it that are indented further than k.
+ * Hence, every line within the visible window can be derived from the indents of the visible rows alone, in a single
+ * pass from top to bottom (only the rows just outside the window are consulted to tell whether a line continues
+ * beyond it). All lines are collected into a reused coordinate buffer and drawn with one Canvas.drawLines() call;
+ * nothing is allocated per frame once the buffers have grown large enough.
+ */
+public class IndentLineDecoration extends RecyclerView.ItemDecoration {
+
+    public static final int INDENT_LINE_OFFSET = 9;
+    public static final int INDENT_LINE_WIDTH = 2;
+    public static final int INDENT_LINE_TOP_MARGIN = 1;
+    public static final int INDENT_LINE_BOTTOM_MARGIN = 1;
+
+    private final Paint paint;
+    private final int offset;
+    private final int unit;
+    private final int topMargin;
+    private final int bottomMargin;
+    // Top coordinate of the line currently open at each indent level.
+    private int[] openTops;
+    // Line coordinates (four per line) of the frame being drawn.
+    private float[] points;
+    private int pointCount;
+
+    public IndentLineDecoration(Context context) {
+        paint = new Paint();
+        paint.setStrokeWidth(UIUtils.dpToPx(context, INDENT_LINE_WIDTH));
+        paint.setColor(ContextCompat.getColor(context, R.color.indent_line));
+        offset = UIUtils.dpToPx(context, INDENT_LINE_OFFSET);
+        unit = MessageView.computeIndentWidth(context, 1);
+        topMargin = UIUtils.dpToPx(context, INDENT_LINE_TOP_MARGIN);
+        bottomMargin = UIUtils.dpToPx(context, INDENT_LINE_BOTTOM_MARGIN);
+        openTops = new int[16];
+        points = new float[64];
+    }
+
+    @Override
+    public void onDraw(@NonNull Canvas c, @NonNull RecyclerView parent, @NonNull RecyclerView.State state) {
+        RecyclerView.Adapter<?> a = parent.getAdapter();
+        if (!(a instanceof MessageListAdapter)) return;
+        MessageListAdapter adapter = (MessageListAdapter) a;
+        int base = parent.getPaddingLeft() + offset;
+        int viewTop = 0, viewBottom = parent.getHeight();
+        int open = 0;
+        int lastBottom = viewTop;
+        int lastPosition = RecyclerView.NO_POSITION;
+        pointCount = 0;
+        for (int i = 0, n = parent.getChildCount(); i < n; i++) {
+            View child = parent.getChildAt(i);
+            int position = parent.getChildAdapterPosition(child);
+            MessageTree mt = (position == RecyclerView.NO_POSITION) ? null : adapter.tryGetItem(position);
+            if (mt == null) continue;
+            int indent = mt.getIndent();
+            if (lastPosition == RecyclerView.NO_POSITION) {
+                // Lines reaching into the window from above start at its top edge.
+                MessageTree above = adapter.tryGetItem(position - 1);
+                int aboveIndent = (above == null) ? 0 : above.getIndent();
+                ensureLevels(indent);
+                for (int k = 0; k < indent; k++) {
+                    openTops[k] = (k < aboveIndent) ? viewTop : child.getTop() + topMargin;
+                }
+                open = indent;
+            } else {
+                // Rows indented no further than a line's level end it; deeper ones open new lines.
+                for (int k = indent; k < open; k++) addLine(base + k * unit, openTops[k], lastBottom - bottomMargin);
+                ensureLevels(indent);
+                for (int k = open; k < indent; k++) openTops[k] = child.getTop() + topMargin;
+                open = indent;
+            }
+            lastBottom = child.getBottom();
+            lastPosition = position;
+        }
+        if (lastPosition != RecyclerView.NO_POSITION) {
+            // Lines continuing below the window end at its bottom edge.
+            MessageTree below = adapter.tryGetItem(lastPosition + 1);
+            int belowIndent = (below == null) ? 0 : below.getIndent();
+            for (int k = 0; k < open; k++) {
+                addLine(base + k * unit, openTops[k], (k < belowIndent) ? viewBottom : lastBottom - bottomMargin);
+            }
+        }
+        if (pointCount != 0) c.drawLines(points, 0, pointCount, paint);
+    }
+
+    private void ensureLevels(int count) {
+        if (count > openTops.length) openTops = Arrays.copyOf(openTops, Math.max(count, openTops.length * 2));
+    }
+
+    private void addLine(int x, int top, int bottom) {
+        if (top >= bottom) return;
+        if (pointCount + 4 > points.length) points = Arrays.copyOf(points, points.length * 2);
+        points[pointCount++] = x;
+        points[pointCount++] = top;
+        points[pointCount++] = x;
+        points[pointCount++] = bottom;
+    }
+
+}
@@ -7,6 +7,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import io.euphoria.xkcd.app.LatencyTracer;
 import io.euphoria.xkcd.app.R;
 import io.euphoria.xkcd.app.data.Message;
 import io.euphoria.xkcd.app.impl.ui.data.DisplayListener;
@@ -34,18 +35,43 @@ public class MessageListAdapter extends RecyclerView.Adapter<MessageListAdapter.
     private static final int MESSAGE = 0;
     private static final int INPUT_BAR = 1;
 
+    // How many messages above and below each bound one to prepare the text of.
+    private static final int PREFETCH_DISTANCE = 8;
+
     // The main data structure
     private final MessageForest data;
     // View of the input bar
     private final InputBarView inputBar;
     // MessageTree representation of the input bar
     private final MessageTree inputBarTree;
+    // Message contents prepared ahead of binding
+    private final ContentLayoutCache contentCache;
+    // Shared among all message views so that binding them allocates nothing
+    private final MessageView.CollapserLabels collapserLabels;
+    private final View.OnClickListener textClickListener;
+    private final View.OnClickListener collapserClickListener;
 
     private InputBarListener inputBarListener;
 
     public MessageListAdapter(MessageForest data, InputBarView inputBar) {
         this.data = data;
         this.inputBar = inputBar;
+        this.contentCache = new ContentLayoutCache();
+        this.collapserLabels = new MessageView.CollapserLabels();
+        this.textClickListener = new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                MessageTree mt = findMessage(v);
+                if (mt != null) moveInputBarAround(mt);
+            }
+        };
+        this.collapserClickListener = new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                MessageTree mt = findMessage(v);
+                if (mt != null) toggleCollapse(mt);
+            }
+        };
         if (data.has(MessageTree.CURSOR_ID)) {
             inputBarTree = data.get(MessageTree.CURSOR_ID);
         } else {
@@ -66,6 +92,10 @@ public class MessageListAdapter extends RecyclerView.Adapter<MessageListAdapter.
             case MESSAGE:
                 MessageView mc = (MessageView) inflater.inflate(R.layout.template_message, parent, false);
                 mc.setVisibility(View.INVISIBLE);
+                mc.setContentCache(contentCache);
+                mc.setCollapserLabels(collapserLabels);
+                mc.setTextClickListener(textClickListener);
+                mc.setCollapserClickListener(collapserClickListener);
                 return new ViewHolder(mc);
             case INPUT_BAR:
                 inputBar.setVisibility(View.INVISIBLE);
@@ -81,21 +111,13 @@ public class MessageListAdapter extends RecyclerView.Adapter<MessageListAdapter.
             case MESSAGE:
                 MessageView mc = (MessageView) holder.itemView;
                 mc.recycle();
-                final MessageTree mt = getItem(position);
+                MessageTree mt = getItem(position);
                 mc.setMessage(mt);
-                mc.setTextClickListener(new View.OnClickListener() {
-                    @Override
-                    public void onClick(View v) {
-                        moveInputBarAround(mt);
-                    }
-                });
-                mc.setCollapserClickListener(new View.OnClickListener() {
-                    @Override
-                    public void onClick(View v) {
-                        toggleCollapse(mt);
-                    }
-                });
+                if (LatencyTracer.isEnabled()) {
+                    LatencyTracer.getInstance().stamp(mt.getID(), LatencyTracer.Stage.BIND);
+                }
                 mc.setVisibility(View.VISIBLE);
+                prefetchAround(position);
                 break;
             case INPUT_BAR:
                 InputBarView ib = (InputBarView) holder.itemView;
@@ -110,6 +132,20 @@ public class MessageListAdapter extends RecyclerView.Adapter<MessageListAdapter.
         return data.size();
     }
 
+    /* Have the contents of the messages near the given position prepared, in case they are scrolled to next */
+    private void prefetchAround(int position) {
+        for (int d = 1; d <= PREFETCH_DISTANCE; d++) {
+            contentCache.prefetch(tryGetItem(position + d));
+            contentCache.prefetch(tryGetItem(position - d));
+        }
+    }
+
+    /* The message shown by the MessageView containing the given view, if any */
+    private static MessageTree findMessage(View v) {
+        MessageView mv = MessageView.findMessageView(v);
+        return (mv == null) ? null : mv.getMessage();
+    }
+
     public MessageTree getItem(int position) {
         return data.get(position);
     }
@@ -204,6 +240,8 @@ public class MessageListAdapter extends RecyclerView.Adapter<MessageListAdapter.
     }
 
     public void moveInputBar(String newParentID) {
+        // Placeholders of pending messages cannot be replied to (they have no real ID yet).
+        if (MessageTree.isPendingID(newParentID)) return;
         String oldParentID = inputBarTree.getParent();
         data.move(inputBarTree, get(newParentID), true);
         inputBar.setIndent(inputBarTree.getIndent());
@@ -5,7 +5,9 @@ import android.content.res.Resources;
 import android.support.annotation.ColorInt;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
+import android.view.ViewParent;
 import android.widget.TextView;
 
 import io.euphoria.xkcd.app.R;
@@ -15,30 +17,75 @@ import io.euphoria.xkcd.app.impl.ui.UIUtils;
 
 import static io.euphoria.xkcd.app.impl.ui.UIUtils.emoteColor;
 import static io.euphoria.xkcd.app.impl.ui.UIUtils.hslToRgbInt;
-import static io.euphoria.xkcd.app.impl.ui.UIUtils.isEmote;
 import static io.euphoria.xkcd.app.impl.ui.UIUtils.setColoredBackground;
 import static io.euphoria.xkcd.app.impl.ui.UIUtils.setViewBackground;
-import static io.euphoria.xkcd.app.impl.ui.UIUtils.trimUnicodeWhitespace;
 
 public class MessageView extends BaseMessageView {
 
+    /* Formatted collapser labels, shared by the views of a list so that each is only formatted once */
+    public static class CollapserLabels {
+
+        // Keyed by the amount of replies, negated for collapsed messages.
+        private final SparseArray<String> labels = new SparseArray<>();
+
+        public String get(Resources res, int replies, boolean collapsed) {
+            int key = collapsed ? -replies : replies;
+            String ret = labels.get(key);
+            if (ret == null) {
+                String repliesStr = res.getQuantityString(R.plurals.collapser_replies, replies);
+                ret = res.getString(collapsed ? R.string.collapser_show : R.string.collapser_hide, replies,
+                        repliesStr);
+                labels.put(key, ret);
+            }
+            return ret;
+        }
+
+    }
+
     private static final String TAG = "MessageView";
+    // Opacity of placeholders of own messages not confirmed by the server yet.
+    private static final float PENDING_ALPHA = 0.5f;
 
     private final MarginLayoutParams defaultLayoutParams;
+    private NicknameView nickLbl;
+    private TextView contentLbl;
+    private View clicker;
+    private View collapser;
+    private TriangleView collapserIcon;
+    private TextView collapserLbl;
+    private ContentLayoutCache contentCache;
+    private CollapserLabels collapserLabels;
+    // The message whose nickname and content are currently shown (which survives recycle()).
+    private UIMessage shownMessage;
 
     public MessageView(Context context, AttributeSet attrs) {
         super(context, attrs);
         defaultLayoutParams = getDefaultMargins(context, attrs);
     }
 
+    @Override
+    protected void onFinishInflate() {
+        super.onFinishInflate();
+        nickLbl = findViewById(R.id.nick_lbl);
+        contentLbl = findViewById(R.id.content_lbl);
+        clicker = findViewById(R.id.clicker);
+        collapser = findViewById(R.id.collapser);
+        collapserIcon = findViewById(R.id.collapser_icon);
+        collapserLbl = findViewById(R.id.collapser_lbl);
+    }
+
+    /* Set where to take prepared message contents from (if anywhere) */
+    public void setContentCache(ContentLayoutCache cache) {
+        contentCache = cache;
+    }
+
+    /* Set where to take collapser labels from (if anywhere) */
+    public void setCollapserLabels(CollapserLabels labels) {
+        collapserLabels = labels;
+    }
+
     @Override
     protected void updateDisplay() {
-        // TODO move to ViewHolder?
-        NicknameView nickLbl = findViewById(R.id.nick_lbl);
-        TextView contentLbl = findViewById(R.id.content_lbl);
-        View collapser = findViewById(R.id.collapser);
-        TriangleView collapserIcon = findViewById(R.id.collapser_icon);
-        TextView collapserLbl = findViewById(R.id.collapser_lbl);
         MarginLayoutParams lp = (MarginLayoutParams) getLayoutParams();
         if (lp == null) {
             lp = new MarginLayoutParams(defaultLayoutParams);
@@ -47,17 +94,8 @@ public class MessageView extends BaseMessageView {
         MessageTree mt = getMessage();
         UIMessage msg = mt.getMessage();
         setMarginForIndent(getContext(), lp, mt.getIndent());
-        if (msg != null) {
-            String content = msg.getContent();
-            boolean emote = isEmote(content);
-            String displayContent = emote ? content.substring(3) : content;
-            displayContent = trimUnicodeWhitespace(displayContent);
-            // Apply the nickname
-            nickLbl.updateParameters(emote, msg.getSenderName());
-            // Apply the message's text
-            contentLbl.setText(displayContent);
-            setContentBackground(contentLbl, emote, emoteColor(msg.getSenderName()));
-        } else {
+        setAlpha(mt.isPending() ? PENDING_ALPHA : 1);
+        if (msg == null) {
             Resources res = getResources();
             nickLbl.setText(res.getString(R.string.not_available));
             contentLbl.setText(res.getString(R.string.not_available));
@@ -66,8 +104,20 @@ public class MessageView extends BaseMessageView {
             setContentBackground(contentLbl, false, -1);
             Log.e(TAG, "updateDisplay: MessageView message is null!",
                     new RuntimeException("MessageView message is null!"));
+        } else if (msg != shownMessage) {
+            boolean emote = msg.isEmote();
+            // Apply the nickname
+            nickLbl.updateParameters(emote, msg.getSenderName());
+            // Apply the message's text
+            if (contentCache != null) {
+                contentCache.apply(contentLbl, msg, msg.getDisplayContent());
+            } else {
+                contentLbl.setText(msg.getDisplayContent());
+            }
+            setContentBackground(contentLbl, emote, emoteColor(msg.getSenderName()));
         }
-        if (mt.getReplies().isEmpty()) {
+        shownMessage = msg;
+        if (!mt.hasReplies()) {
             collapser.setVisibility(GONE);
             return;
         }
@@ -77,30 +127,38 @@ public class MessageView extends BaseMessageView {
             return;
         }
         collapser.setVisibility(VISIBLE);
-        Resources res = getResources();
-        String repliesStr = res.getQuantityString(R.plurals.collapser_replies, replies);
-        if (mt.isCollapsed()) {
-            collapserLbl.setText(res.getString(R.string.collapser_show, replies, repliesStr));
-            collapserIcon.setPointDown(false);
+        String label;
+        if (collapserLabels != null) {
+            label = collapserLabels.get(getResources(), replies, mt.isCollapsed());
         } else {
-            collapserLbl.setText(res.getString(R.string.collapser_hide, replies, repliesStr));
-            collapserIcon.setPointDown(true);
+            label = new CollapserLabels().get(getResources(), replies, mt.isCollapsed());
         }
+        if (collapserLbl.getText() != label) collapserLbl.setText(label);
+        collapserIcon.setPointDown(!mt.isCollapsed());
     }
 
-    public void recycle() {
-        super.recycle();
-        setTextClickListener(null);
-        setCollapserClickListener(null);
-    }
-
+    /* Install the listeners for taps on the message and on its collapser
+     *
+     * These are meant to be installed once, when the view is created; see findMessageView() for getting from the view
+     * tapped to the message.
+     */
     public void setTextClickListener(OnClickListener l) {
-        UIUtils.setSelectableOnClickListener(findViewById(R.id.nick_lbl), l);
-        UIUtils.setSelectableOnClickListener(findViewById(R.id.content_lbl), l);
-        findViewById(R.id.clicker).setOnClickListener(l);
+        UIUtils.setSelectableOnClickListener(nickLbl, l);
+        UIUtils.setSelectableOnClickListener(contentLbl, l);
+        clicker.setOnClickListener(l);
     }
+
     public void setCollapserClickListener(OnClickListener l) {
-        findViewById(R.id.collapser).setOnClickListener(l);
+        collapser.setOnClickListener(l);
+    }
+
+    /* The MessageView containing the given view (or the view itself), or null if there is none */
+    public static MessageView findMessageView(View v) {
+        while (v != null && !(v instanceof MessageView)) {
+            ViewParent parent = v.getParent();
+            v = (parent instanceof View) ? (View) parent : null;
+        }
+        return (MessageView) v;
     }
 
     private static void setContentBackground(View v, boolean emote, @ColorInt int color) {
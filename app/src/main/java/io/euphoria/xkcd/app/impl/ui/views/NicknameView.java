@@ -4,6 +4,7 @@ import android.content.Context;
 import android.support.annotation.ColorInt;
 import android.support.annotation.Nullable;
 import android.support.v7.widget.AppCompatTextView;
+import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.view.View;
 
@@ -19,6 +20,8 @@ public class NicknameView extends AppCompatTextView {
     public static final int NO_COLOR_OVERRIDE = -1;
 
     private boolean inEmoteMode;
+    // The nickname last passed to updateParameters().
+    private String nick;
     @ColorInt
     private int colorOverride;
 
@@ -49,10 +52,14 @@ public class NicknameView extends AppCompatTextView {
     }
 
     public void updateParameters(@ColorInt int color) {
+        nick = null;
         setColorOverride(color);
     }
 
     public void updateParameters(boolean emoteMode, String text) {
+        // Re-binding the same nickname is common, and setting the text of a selectable view allocates.
+        if (TextUtils.equals(text, nick) && emoteMode == inEmoteMode && colorOverride == NO_COLOR_OVERRIDE) return;
+        nick = text;
         colorOverride = NO_COLOR_OVERRIDE;
         inEmoteMode = emoteMode;
         setText(text);
@@ -65,7 +72,14 @@ public class NicknameView extends AppCompatTextView {
     }
 
     private void updateBackground() {
-        @ColorInt int color = (colorOverride != NO_COLOR_OVERRIDE) ? colorOverride : nickColor(getText().toString());
+        @ColorInt int color;
+        if (colorOverride != NO_COLOR_OVERRIDE) {
+            color = colorOverride;
+        } else {
+            // Avoid copying the (possibly spannable) text when it is the nickname given to updateParameters().
+            CharSequence text = getText();
+            color = nickColor(TextUtils.equals(nick, text) ? nick : text.toString());
+        }
         setNickBackground(this, inEmoteMode, color);
     }
 
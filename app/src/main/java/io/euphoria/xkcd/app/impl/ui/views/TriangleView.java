@@ -33,6 +33,7 @@ class TriangleView extends View {
     }
 
     public void setPointDown(boolean pointDown) {
+        if (this.pointDown == pointDown) return;
         this.pointDown = pointDown;
         invalidate();
     }
@@ -38,6 +38,12 @@ public interface RoomUI {
      */
     void showMessages(List<Message> messages);
 
+    /* Display the given own messages as not yet confirmed by the server
+     *
+     * These replace all pending messages shown before; the server's confirmations arrive through showMessages().
+     */
+    void showPendingMessages(List<Message> messages);
+
     /* Update the nickname list with the given session ID-name pairs
      *
      * Changed nicknames are to be replaced. Empty nicknames are not to be shown.
@@ -11,6 +11,9 @@ public interface RoomUIManager {
     /* Get the room UI for the given name */
     RoomUI getRoomUI(String roomName);
 
+    /* Discard the room UI for the given name (along with any state it has accumulated), if any */
+    void removeRoomUI(String roomName);
+
     /* Install an event listener */
     void addEventListener(UIManagerListener l);
 
@@ -1,6 +1,7 @@
 package io.euphoria.xkcd.app.ui.event;
 
 import io.euphoria.xkcd.app.ui.RoomUI;
+import io.euphoria.xkcd.app.ui.UIListener;
 
 /** Created by Xyzzy on 2017-02-26. */
 
@@ -12,4 +13,7 @@ public interface UIEvent {
      * May be null if the event comes directly from a RoomUIManager. */
     RoomUI getRoomUI();
 
+    /* Invoke the method of the given listener corresponding to this event's type */
+    void dispatchTo(UIListener l);
+
 }
@@ -0,0 +1,93 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionNegotiationTest {
+
+    private WebSocketTransport transport;
+    private EchoServer server;
+
+    @Before
+    public void setUp() {
+        transport = new WebSocketTransport();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        transport.shutdown();
+        if (server != null) server.stop(1000);
+    }
+
+    private static String repetitiveMessage() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 4000) sb.append("{\"type\":\"send-event\",\"data\":{\"content\":\"hello\"}}");
+        return sb.toString();
+    }
+
+    private RecordingClient echo(CompressionStats stats, boolean deflate, String message) throws InterruptedException {
+        server.startAndWait();
+        RecordingClient client = new RecordingClient(transport, server.getURI(),
+                CountingExtensions.createDraft(stats, deflate));
+        client.connect();
+        assertTrue("connection did not open: " + client.error, client.awaitOpen());
+        client.send(message);
+        assertEquals(message, client.awaitMessage());
+        return client;
+    }
+
+    private static void assertPlain(RecordingClient client, CompressionStats stats, String message)
+            throws InterruptedException {
+        assertFalse(CountingExtensions.isCompressed(client.getDraft()));
+        assertEquals(1, stats.getFramesOut());
+        assertEquals(1, stats.getFramesIn());
+        assertEquals(message.length(), stats.getPlainBytesOut());
+        assertEquals(stats.getPlainBytesOut(), stats.getWireBytesOut());
+        assertEquals(stats.getPlainBytesIn(), stats.getWireBytesIn());
+        client.close();
+        assertTrue(client.awaitClose());
+    }
+
+    @Test
+    public void negotiatesDeflate() throws InterruptedException {
+        server = new EchoServer(new Draft_6455(new PerMessageDeflateExtension()));
+        CompressionStats stats = new CompressionStats();
+        String message = repetitiveMessage();
+        RecordingClient client = echo(stats, true, message);
+        assertTrue(CountingExtensions.isCompressed(client.getDraft()));
+        assertEquals(1, stats.getFramesOut());
+        assertEquals(1, stats.getFramesIn());
+        assertEquals(message.length(), stats.getPlainBytesOut());
+        assertEquals(message.length(), stats.getPlainBytesIn());
+        assertTrue(stats.getWireBytesOut() < stats.getPlainBytesOut());
+        assertTrue(stats.getWireBytesIn() < stats.getPlainBytesIn());
+        client.close();
+        assertTrue(client.awaitClose());
+    }
+
+    @Test
+    public void fallsBackToPlainFrames() throws InterruptedException {
+        server = new EchoServer(new Draft_6455());
+        CompressionStats stats = new CompressionStats();
+        String message = repetitiveMessage();
+        RecordingClient client = echo(stats, true, message);
+        assertPlain(client, stats, message);
+    }
+
+    @Test
+    public void offersPlainFramesWithoutDeflate() throws InterruptedException {
+        server = new EchoServer(new Draft_6455(new PerMessageDeflateExtension()));
+        CompressionStats stats = new CompressionStats();
+        String message = repetitiveMessage();
+        RecordingClient client = echo(stats, false, message);
+        assertPlain(client, stats, message);
+    }
+
+}
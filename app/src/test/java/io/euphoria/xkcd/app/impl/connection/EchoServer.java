@@ -0,0 +1,59 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/* A WebSocket server on the loopback interface that echoes every text message back
+ *
+ * Messages starting with SILENT are swallowed instead, so that clients can be made to wait for data that never comes.
+ */
+class EchoServer extends WebSocketServer {
+
+    public static final String SILENT = "silent:";
+
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    public EchoServer(Draft draft) {
+        super(new InetSocketAddress("127.0.0.1", 0), Collections.singletonList(draft));
+        setReuseAddr(true);
+    }
+
+    /* Start the server and wait until it accepts connections */
+    public void startAndWait() throws InterruptedException {
+        start();
+        if (!started.await(10, TimeUnit.SECONDS)) throw new IllegalStateException("Server did not start");
+    }
+
+    public URI getURI() {
+        return URI.create("ws://127.0.0.1:" + getPort() + "/room/test/ws");
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {}
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {}
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        if (message.startsWith(SILENT)) return;
+        conn.send(message);
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {}
+
+    @Override
+    public void onStart() {
+        started.countDown();
+    }
+
+}
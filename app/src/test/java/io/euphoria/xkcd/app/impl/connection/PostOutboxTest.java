@@ -0,0 +1,186 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.euphoria.xkcd.app.data.Message;
+import io.euphoria.xkcd.app.data.SessionView;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PostOutboxTest {
+
+    private static final String AGENT = "agent:me";
+
+    private static class Sender implements SessionView {
+
+        private final String agentID;
+
+        Sender(String agentID) {
+            this.agentID = agentID;
+        }
+
+        @Override
+        public String getSessionID() {
+            return "session";
+        }
+
+        @Override
+        public String getAgentID() {
+            return agentID;
+        }
+
+        @Override
+        public String getName() {
+            return "nick";
+        }
+
+        @Override
+        public boolean isStaff() {
+            return false;
+        }
+
+        @Override
+        public boolean isManager() {
+            return false;
+        }
+
+    }
+
+    private static class Posted implements Message {
+
+        private final String id;
+        private final long time;
+        private final SessionView sender;
+        private final String content;
+
+        Posted(String id, long time, String agentID, String content) {
+            this.id = id;
+            this.time = time;
+            this.sender = new Sender(agentID);
+            this.content = content;
+        }
+
+        @Override
+        public String getID() {
+            return id;
+        }
+
+        @Override
+        public String getParent() {
+            return null;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return time;
+        }
+
+        @Override
+        public SessionView getSender() {
+            return sender;
+        }
+
+        @Override
+        public String getContent() {
+            return content;
+        }
+
+        @Override
+        public boolean isTruncated() {
+            return false;
+        }
+
+    }
+
+    private PostOutbox outbox;
+    // The time of the post, in seconds, as the server would report it.
+    private long postTime;
+
+    @Before
+    public void setUp() {
+        outbox = new PostOutbox(null);
+        postTime = System.currentTimeMillis() / 1000;
+        outbox.add(1, "hello", null);
+        assertEquals(1, outbox.takeUnsent().size());
+        // The connection drops before the send-reply arrives.
+        outbox.onDisconnect();
+        assertTrue(outbox.needsReconcile());
+        assertTrue(outbox.takeUnsent().isEmpty());
+    }
+
+    @Test
+    public void removesDeliveredPosts() {
+        List<Message> log = Arrays.<Message>asList(new Posted("01", postTime - 60, "agent:other", "older"),
+                new Posted("02", postTime + 1, AGENT, "hello"));
+        assertTrue(outbox.isCovered(log, null, 0, true));
+        assertTrue(outbox.reconcile(log, AGENT, null, 0, true, false));
+        assertTrue(outbox.isEmpty());
+    }
+
+    @Test
+    public void resendsCoveredPosts() {
+        // Reaching back to the message seen last suffices, whatever the times.
+        List<Message> log = Arrays.<Message>asList(new Posted("01", postTime + 5, "agent:other", "seen"),
+                new Posted("02", postTime + 6, "agent:other", "hello"));
+        assertTrue(outbox.isCovered(log, "01", 0, true));
+        assertFalse(outbox.reconcile(log, AGENT, "01", 0, true, false));
+        assertFalse(outbox.needsReconcile());
+        assertEquals(1, outbox.takeUnsent().size());
+    }
+
+    @Test
+    public void ignoresMessagesSeenBefore() {
+        List<Message> log = Arrays.<Message>asList(new Posted("01", postTime, AGENT, "hello"));
+        assertFalse(outbox.reconcile(log, AGENT, "01", 0, true, false));
+        assertEquals(1, outbox.takeUnsent().size());
+    }
+
+    @Test
+    public void dropsPostsOlderThanTheLog() {
+        List<Message> log = Arrays.<Message>asList(new Posted("05", postTime + 60, "agent:other", "newer"));
+        assertFalse(outbox.isCovered(log, null, 0, true));
+        assertTrue(outbox.reconcile(log, AGENT, null, 0, true, false));
+        assertTrue(outbox.isEmpty());
+    }
+
+    @Test
+    public void resendsPostsGivenTheWholeHistory() {
+        List<Message> log = Arrays.<Message>asList(new Posted("05", postTime + 60, "agent:other", "newer"));
+        assertFalse(outbox.reconcile(log, AGENT, null, 0, true, true));
+        assertEquals(1, outbox.takeUnsent().size());
+        outbox.onDisconnect();
+        assertFalse(outbox.reconcile(Collections.<Message>emptyList(), AGENT, null, 0, true, true));
+        assertEquals(1, outbox.takeUnsent().size());
+    }
+
+    @Test
+    public void widensSkewWithoutClock() {
+        // Five minutes before the post by our clock: too early to be it if our clock is known to be right, but
+        // possible otherwise.
+        List<Message> log = Arrays.<Message>asList(new Posted("01", postTime - 300, AGENT, "hello"));
+        assertTrue(outbox.isCovered(log, null, 0, true));
+        assertFalse(outbox.isCovered(log, null, 0, false));
+        assertTrue(outbox.reconcile(log, AGENT, null, 0, false, false));
+        assertTrue(outbox.isEmpty());
+    }
+
+    @Test
+    public void appliesClockOffset() {
+        // The server's clock is an hour ahead of ours.
+        long offset = 3600000;
+        List<Message> log = Arrays.<Message>asList(new Posted("01", postTime + 60, "agent:other", "other"),
+                new Posted("02", postTime + 3601, AGENT, "hello"));
+        assertFalse(outbox.isCovered(log.subList(1, 2), null, offset, true));
+        assertTrue(outbox.isCovered(log, null, offset, true));
+        assertTrue(outbox.reconcile(log, AGENT, null, offset, true, false));
+        assertTrue(outbox.isEmpty());
+    }
+
+}
@@ -0,0 +1,60 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.net.URI;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/* A MultiplexedWebSocketClient that records what happens to it for tests to wait on */
+class RecordingClient extends MultiplexedWebSocketClient {
+
+    public static final long TIMEOUT = 10;
+
+    public final CountDownLatch opened = new CountDownLatch(1);
+    public final CountDownLatch closed = new CountDownLatch(1);
+    public final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+    public volatile Exception error;
+    public volatile int closeCode;
+
+    public RecordingClient(WebSocketTransport transport, URI uri, Draft draft) {
+        super(transport, uri, draft);
+    }
+
+    public boolean awaitOpen() throws InterruptedException {
+        return opened.await(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    public boolean awaitClose() throws InterruptedException {
+        return closed.await(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    public String awaitMessage() throws InterruptedException {
+        return messages.poll(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void onOpen(ServerHandshake handshakedata) {
+        opened.countDown();
+    }
+
+    @Override
+    public void onMessage(String message) {
+        messages.add(message);
+    }
+
+    @Override
+    public void onClose(int code, String reason, boolean remote) {
+        closeCode = code;
+        closed.countDown();
+    }
+
+    @Override
+    public void onError(Exception ex) {
+        error = ex;
+    }
+
+}
@@ -0,0 +1,151 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.euphoria.xkcd.app.data.Message;
+import io.euphoria.xkcd.app.data.SessionView;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class UnreadTrackerTest {
+
+    private static class Session implements SessionView {
+
+        private final String sessionID;
+        private final String agentID;
+        private final String name;
+
+        Session(String sessionID, String agentID, String name) {
+            this.sessionID = sessionID;
+            this.agentID = agentID;
+            this.name = name;
+        }
+
+        @Override
+        public String getSessionID() {
+            return sessionID;
+        }
+
+        @Override
+        public String getAgentID() {
+            return agentID;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isStaff() {
+            return false;
+        }
+
+        @Override
+        public boolean isManager() {
+            return false;
+        }
+
+    }
+
+    private static class Post implements Message {
+
+        private final String id;
+        private final SessionView sender;
+        private final String content;
+
+        Post(String id, SessionView sender, String content) {
+            this.id = id;
+            this.sender = sender;
+            this.content = content;
+        }
+
+        @Override
+        public String getID() {
+            return id;
+        }
+
+        @Override
+        public String getParent() {
+            return null;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return 0;
+        }
+
+        @Override
+        public SessionView getSender() {
+            return sender;
+        }
+
+        @Override
+        public String getContent() {
+            return content;
+        }
+
+        @Override
+        public boolean isTruncated() {
+            return false;
+        }
+
+    }
+
+    private static final Session SELF = new Session("s1", "a1", "Me");
+    private static final Session OTHER = new Session("s2", "a2", "Other");
+
+    private UnreadTracker tracker;
+
+    @Before
+    public void setUp() {
+        tracker = new UnreadTracker();
+        tracker.onIdentity(SELF);
+    }
+
+    @Test
+    public void countsUnreadAndMentions() {
+        tracker.onMessage(new Post("01", OTHER, "hello"));
+        tracker.onMessage(new Post("02", OTHER, "hi @me"));
+        tracker.onMessage(new Post("03", OTHER, "mail@me"));
+        assertEquals(3, tracker.getUnreadCount());
+        assertEquals(1, tracker.getMentionCount());
+        assertNull(tracker.getLastReadID());
+        tracker.markRead();
+        assertEquals(0, tracker.getUnreadCount());
+        assertEquals(0, tracker.getMentionCount());
+        assertEquals("03", tracker.getLastReadID());
+    }
+
+    @Test
+    public void ignoresReplaysAndOwnPosts() {
+        tracker.onMessage(new Post("02", OTHER, "@me"));
+        tracker.onMessage(new Post("02", OTHER, "@me"));
+        tracker.onMessage(new Post("01", OTHER, "@me"));
+        assertEquals(1, tracker.getUnreadCount());
+        tracker.onMessage(new Post("03", SELF, "reply"));
+        assertEquals(0, tracker.getUnreadCount());
+        assertEquals(0, tracker.getMentionCount());
+        assertEquals("03", tracker.getLastReadID());
+    }
+
+    @Test
+    public void followsFocusAndNick() {
+        tracker.setFocused(true);
+        tracker.onMessage(new Post("01", OTHER, "@me"));
+        assertEquals(0, tracker.getUnreadCount());
+        assertEquals("01", tracker.getLastReadID());
+        tracker.setFocused(false);
+        tracker.onNickChange(new Session("s1", "a1", "Some:smile:one"));
+        tracker.onMessage(new Post("02", OTHER, "@me"));
+        tracker.onMessage(new Post("03", OTHER, "@someone"));
+        // Nick changes of other sessions are not ours.
+        tracker.onNickChange(new Session("s2", "a2", "Me"));
+        tracker.onMessage(new Post("04", OTHER, "@me"));
+        assertEquals(3, tracker.getUnreadCount());
+        assertEquals(1, tracker.getMentionCount());
+    }
+
+}
@@ -0,0 +1,108 @@
+package io.euphoria.xkcd.app.impl.connection;
+
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.CloseFrame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WebSocketTransportTest {
+
+    private static final int ROOMS = 4;
+
+    private WebSocketTransport transport;
+    private EchoServer server;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        server = new EchoServer(new Draft_6455());
+        server.startAndWait();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (transport != null) transport.shutdown();
+        server.stop(1000);
+    }
+
+    private RecordingClient open() throws InterruptedException {
+        RecordingClient client = new RecordingClient(transport, server.getURI(), new Draft_6455());
+        client.connect();
+        assertTrue("connection did not open: " + client.error, client.awaitOpen());
+        return client;
+    }
+
+    @Test
+    public void multiplexesRooms() throws InterruptedException {
+        transport = new WebSocketTransport();
+        List<RecordingClient> clients = new ArrayList<>();
+        for (int i = 0; i < ROOMS; i++) clients.add(open());
+        for (int i = 0; i < ROOMS; i++) clients.get(i).send("message " + i);
+        for (int i = 0; i < ROOMS; i++) assertEquals("message " + i, clients.get(i).awaitMessage());
+        assertEquals(ROOMS, transport.getHandshakeStats().getPlainCount());
+        // Closing one connection leaves the others alone.
+        clients.get(0).close();
+        assertTrue(clients.get(0).awaitClose());
+        assertEquals(CloseFrame.NORMAL, clients.get(0).closeCode);
+        for (int i = 1; i < ROOMS; i++) {
+            RecordingClient client = clients.get(i);
+            assertTrue(client.isOpen());
+            client.send("again " + i);
+            assertEquals("again " + i, client.awaitMessage());
+        }
+        for (int i = 1; i < ROOMS; i++) clients.get(i).close();
+        for (int i = 1; i < ROOMS; i++) {
+            RecordingClient client = clients.get(i);
+            assertTrue(client.awaitClose());
+            assertEquals(CloseFrame.NORMAL, client.closeCode);
+            assertNull(client.error);
+        }
+    }
+
+    @Test
+    public void failsIdleConnections() throws InterruptedException {
+        transport = new WebSocketTransport(500);
+        RecordingClient idle = open();
+        RecordingClient busy = open();
+        // Only incoming data counts as activity.
+        idle.send(EchoServer.SILENT + "never answered");
+        // WebSocketServer occasionally holds a reply back until the next one (its selector and worker threads race
+        // on the connection's interest set), so the replies are not awaited one by one.
+        long end = System.currentTimeMillis() + 1500;
+        while (System.currentTimeMillis() < end) {
+            busy.send("ping");
+            Thread.sleep(100);
+        }
+        assertTrue(idle.awaitClose());
+        assertEquals(CloseFrame.ABNORMAL_CLOSE, idle.closeCode);
+        assertTrue(idle.error instanceof SocketTimeoutException);
+        assertTrue(busy.isOpen());
+        assertFalse(busy.messages.isEmpty());
+        busy.close();
+        assertTrue(busy.awaitClose());
+        assertNull(busy.error);
+    }
+
+    @Test
+    public void failsUnresolvableHosts() throws InterruptedException {
+        transport = new WebSocketTransport();
+        RecordingClient client = new RecordingClient(transport, URI.create("ws://nonexistent.invalid/room/test/ws"),
+                new Draft_6455());
+        client.connect();
+        assertTrue(client.awaitClose());
+        assertFalse(client.isOpen());
+        assertTrue(client.error instanceof UnknownHostException);
+    }
+
+}
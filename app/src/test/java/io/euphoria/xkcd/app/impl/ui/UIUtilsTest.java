@@ -0,0 +1,116 @@
+package io.euphoria.xkcd.app.impl.ui;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UIUtilsTest {
+
+    // The regular-expression-based normalization UIUtils used to perform.
+    private static final Pattern EMOJI_RE = Pattern.compile(":[a-zA-Z!?\\-]+?:");
+    private static final Pattern MENTION_RE = Pattern.compile("(?<!\\w)@(\\S+)");
+
+    // Characters to build random nicknames and messages from; whitespace is limited to what \s and
+    // Character.isWhitespace() agree on.
+    private static final String ALPHABET = "aAbBzZ09_-:!?@ \t\n.'()\u00e9\u00c4\u2603";
+    private static final int ROUNDS = 20000;
+
+    private static String regexNormalize(String text) {
+        return EMOJI_RE.matcher(text).replaceAll("").replaceAll("[^\\w_\\-]", "").toLowerCase();
+    }
+
+    private static boolean regexMentions(String content, String normalizedNick) {
+        if (normalizedNick.isEmpty()) return false;
+        Matcher m = MENTION_RE.matcher(content);
+        while (m.find()) {
+            if (regexNormalize(m.group(1)).equals(normalizedNick)) return true;
+        }
+        return false;
+    }
+
+    private static String randomString(Random rnd, String alphabet, int maxLength) {
+        int length = rnd.nextInt(maxLength + 1);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+        return sb.toString();
+    }
+
+    @Test
+    public void normalizesLikeRegex() {
+        String[] cases = {"", "foo", "Foo Bar", ":smile:", "a:smile:b", "::", ":a:b:", ":no emoji:", "a:b",
+                ":-:", ":!?:x", "_under_score-", "caf\u00e9", "\u2603:snowman:\u2603", ":a::b:", "x:y:z:w"};
+        for (String text : cases) {
+            assertEquals(text, regexNormalize(text), UIUtils.normalizeNick(text));
+        }
+        Random rnd = new Random(42);
+        for (int i = 0; i < ROUNDS; i++) {
+            String text = randomString(rnd, ALPHABET, 16);
+            assertEquals(text, regexNormalize(text), UIUtils.normalizeNick(text));
+        }
+    }
+
+    @Test
+    public void findsMentions() {
+        assertTrue(UIUtils.mentions("@foo", "foo"));
+        assertTrue(UIUtils.mentions("hi @Foo!", "foo"));
+        assertTrue(UIUtils.mentions("(@foo)", "foo"));
+        assertTrue(UIUtils.mentions("@bar and @foo", "foo"));
+        assertTrue(UIUtils.mentions("@foo\n@bar", "bar"));
+        assertFalse(UIUtils.mentions("foo", "foo"));
+        assertFalse(UIUtils.mentions("@ foo", "foo"));
+        assertFalse(UIUtils.mentions("@foo", ""));
+        assertFalse(UIUtils.mentions("", "foo"));
+    }
+
+    @Test
+    public void skipsEmojiInMentions() {
+        assertTrue(UIUtils.mentions("@fo:smile:o", "foo"));
+        assertTrue(UIUtils.mentions("@:smile:foo:smile:", "foo"));
+        assertTrue(UIUtils.mentions("@foo:bar", "foobar"));
+        assertFalse(UIUtils.mentions("@foo:bar", "foo"));
+        assertFalse(UIUtils.mentions("@foo:bar:", "foobar"));
+        assertTrue(UIUtils.mentions("@foo:bar:", "foo"));
+        assertTrue(UIUtils.mentions("@foo:", "foo"));
+    }
+
+    @Test
+    public void ignoresAtAfterWordCharacter() {
+        assertFalse(UIUtils.mentions("mail@foo", "foo"));
+        assertFalse(UIUtils.mentions("_@foo", "foo"));
+        assertFalse(UIUtils.mentions("9@foo", "foo"));
+        assertTrue(UIUtils.mentions("-@foo", "foo"));
+        assertTrue(UIUtils.mentions("@@foo", "foo"));
+        assertTrue(UIUtils.mentions("mail@foo @foo", "foo"));
+    }
+
+    @Test
+    public void requiresWholeNick() {
+        // Mention shorter than the nick
+        assertFalse(UIUtils.mentions("@fo", "foo"));
+        assertFalse(UIUtils.mentions("@fo o", "foo"));
+        // Mention longer than the nick
+        assertFalse(UIUtils.mentions("@foobar", "foo"));
+        assertFalse(UIUtils.mentions("@foo's", "foo"));
+        assertTrue(UIUtils.mentions("@foo's", "foos"));
+        // Prefix mismatch
+        assertFalse(UIUtils.mentions("@xfoo", "foo"));
+    }
+
+    @Test
+    public void mentionsLikeRegex() {
+        Random rnd = new Random(4242);
+        String nickAlphabet = "aAbB_-:!";
+        for (int i = 0; i < ROUNDS; i++) {
+            String nick = UIUtils.normalizeNick(randomString(rnd, nickAlphabet, 4));
+            String content = randomString(rnd, ALPHABET + nickAlphabet + "@@", 24);
+            assertEquals(content + " / " + nick, regexMentions(content, nick), UIUtils.mentions(content, nick));
+        }
+    }
+
+}